@@ -0,0 +1,29 @@
+#!/bin/bash
+
+# Converts a text users file (username:password) into the binary,
+# memory-mapped credential format used for large user directories.
+
+# Navigate to the project root
+cd "$(dirname "$0")/.."
+
+INPUT=${1:-"resources/main/users.txt"}
+OUTPUT=${2:-"resources/main/users.db"}
+
+if [ ! -f "$INPUT" ]; then
+    echo "Error: Users file not found at $INPUT"
+    exit 1
+fi
+
+# Create output directory if it doesn't exist
+mkdir -p out/production/assign2
+
+# Compile the code
+echo "Compiling converter..."
+javac -d out/production/assign2 src/main/java/chat/server/auth/*.java
+
+# Check if compilation was successful
+if [ $? -eq 0 ]; then
+    java -cp out/production/assign2 chat.server.auth.CredentialFileConverter "$INPUT" "$OUTPUT"
+else
+    echo "Compilation failed. Please fix the errors and try again."
+fi
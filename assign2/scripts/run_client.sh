@@ -79,7 +79,7 @@ done
 
 # Compile the code
 echo "Compiling client code..."
-javac -d out/production/assign2 src/main/java/chat/client/*.java
+javac -d out/production/assign2 src/main/java/chat/protocol/*.java src/main/java/chat/client/*.java
 
 # Check if compilation was successful
 if [ $? -eq 0 ]; then
@@ -96,7 +96,8 @@ if [ $? -eq 0 ]; then
     fi
     
     # Run the client with arguments
-    java $SSL_OPTS -cp out/production/assign2 chat.client.Client $SERVER $PORT $CLIENT_ID
+    # Extra JVM options (e.g. -Dchat.client.reconnectMaxMs=10000) can be passed via JAVA_OPTS.
+    java $SSL_OPTS $JAVA_OPTS -cp out/production/assign2 chat.client.Client $SERVER $PORT $CLIENT_ID
 else
     echo "Compilation failed. Please fix the errors and try again."
 fi
\ No newline at end of file
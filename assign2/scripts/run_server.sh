@@ -55,7 +55,7 @@ mkdir -p out/production/assign2
 
 # Compile the code
 echo "Compiling server code..."
-javac -d out/production/assign2 src/main/java/chat/server/*.java src/main/java/chat/server/auth/*.java src/main/java/chat/server/ai/*.java
+javac -d out/production/assign2 src/main/java/chat/protocol/*.java src/main/java/chat/server/*.java src/main/java/chat/server/auth/*.java src/main/java/chat/server/ai/*.java src/main/java/chat/server/cluster/*.java
 
 # Check if compilation was successful
 if [ $? -eq 0 ]; then
@@ -68,9 +68,14 @@ if [ $? -eq 0 ]; then
     echo "Using port: $PORT"
     echo "Using users file: $USERS_FILE"
     
+    # AI backend endpoint and model can be overridden, e.g. to use the stub backend
+    AI_URL=${AI_URL:-"http://localhost:11434/api/generate"}
+    AI_MODEL=${AI_MODEL:-"llama3"}
+    AI_OPTS="-Dchat.ai.url=$AI_URL -Dchat.ai.model=$AI_MODEL"
+
     # Check if Ollama is available for AI rooms
-    if command -v curl &> /dev/null && curl -s --connect-timeout 2 "http://localhost:11434/api/tags" &> /dev/null; then
-        echo "Ollama service detected - AI room feature is available"
+    if command -v curl &> /dev/null && curl -s --connect-timeout 2 "${AI_URL%/api/generate}/api/tags" &> /dev/null; then
+        echo "Ollama service detected at $AI_URL - AI room feature is available"
     else
         echo "Warning: Ollama service not detected - AI room feature will not work"
         echo "To use AI rooms, please install Ollama from https://ollama.com/"
@@ -83,8 +88,9 @@ if [ $? -eq 0 ]; then
         SSL_OPTS="-Djavax.net.debug=ssl,handshake"
     fi
     
-    # Run the server with arguments (port number and users file)
-    java $SSL_OPTS -cp out/production/assign2 chat.server.Server $PORT $USERS_FILE
+    # Run the server with arguments (port number and users file).
+    # Extra JVM options (e.g. -Dchat.ai.debounceMs=500) can be passed via JAVA_OPTS.
+    java $SSL_OPTS $AI_OPTS $JAVA_OPTS -cp out/production/assign2 chat.server.Server $PORT $USERS_FILE
 else
     echo "Compilation failed. Please fix the errors and try again."
 fi
\ No newline at end of file
@@ -0,0 +1,25 @@
+#!/bin/bash
+
+# Starts the stub AI backend, a local stand-in for Ollama's /api/generate
+# that streams scripted responses for latency and load testing.
+# All arguments are passed through, e.g.:
+#   ./scripts/run_stub_ai.sh --port 11435 --tokens-per-second 30 --first-token-ms 500 --error-rate 0.05
+# Then start the server against it:
+#   AI_URL=http://localhost:11435/api/generate ./scripts/run_server.sh
+
+# Navigate to the project root
+cd "$(dirname "$0")/.."
+
+# Create output directory if it doesn't exist
+mkdir -p out/production/assign2
+
+# Compile the code
+echo "Compiling stub AI backend..."
+javac -d out/production/assign2 src/main/java/chat/server/ai/*.java
+
+# Check if compilation was successful
+if [ $? -eq 0 ]; then
+    java -cp out/production/assign2 chat.server.ai.StubOllamaServer "$@"
+else
+    echo "Compilation failed. Please fix the errors and try again."
+fi
@@ -1,5 +1,7 @@
 package chat.client;
 
+import chat.protocol.LineCompression;
+import chat.protocol.LineEscaping;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -11,10 +13,25 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.KeyStore;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
@@ -22,11 +39,16 @@ import javax.net.ssl.TrustManagerFactory;
 
 public class Client {
 
-    private final String serverAddress;
-    private final int serverPort;
-    private SSLSocket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    // Current server; changes when a cluster node redirects the client
+    private volatile String serverAddress;
+    private volatile int serverPort;
+    // Server the client was started with, used again if a node it was
+    // redirected to cannot be reached
+    private final String homeAddress;
+    private final int homePort;
+    private volatile SSLSocket socket;
+    private volatile BufferedReader in;
+    private volatile PrintWriter out;
     private BufferedReader consoleIn;
     private final AtomicBoolean isRunning = new AtomicBoolean(false);
     private final AtomicBoolean isAuthenticated = new AtomicBoolean(false);
@@ -34,11 +56,86 @@ public class Client {
     private ExecutorService executor;
     private String username;
     private String sessionToken;
+
+    // Streamed AI responses (see chat.server.Room)
+    private static final String BOT_PARTIAL_PREFIX = "BOT_PARTIAL:";
+    private static final String BOT_DONE = "BOT_DONE";
+
+    // Output is rendered by a separate stage so reading never waits on the
+    // terminal. Chat messages beyond the backlog limit are skipped and
+    // summarized; tune with -Dchat.client.renderBacklog=<lines> (0 never skips).
+    private static final int RENDER_BACKLOG_LIMIT = Integer.getInteger("chat.client.renderBacklog", 10000);
+    private static final long SKIP_NOTICE_INTERVAL_MS = 1000;
+    private final ConsoleRenderer renderer = new ConsoleRenderer(System.out, RENDER_BACKLOG_LIMIT, SKIP_NOTICE_INTERVAL_MS);
+
+    // Handshake events, completed by the reader thread. The main flow waits on
+    // them instead of sleeping, so login takes one round trip.
+    // Timeout can be tuned with -Dchat.client.handshakeTimeoutMs=<millis>.
+    private static final long HANDSHAKE_TIMEOUT_MS = Long.getLong("chat.client.handshakeTimeoutMs", 5000);
+    private volatile CompletableFuture<String> welcomeReceived = new CompletableFuture<>();
+    private volatile CompletableFuture<Boolean> authResult = new CompletableFuture<>();
+
+    // Resume protocol (see chat.server.ClientHandler): room messages arrive as
+    // "MSG:<seq> <room> <text>" and the last sequence seen per room is sent
+    // back with "RESUME:<seq> <room>" when the session is resumed.
+    private static final String CAPS_SEQ = "CAPS:SEQ";
+    private static final String RESUME_PREFIX = "RESUME:";
+    private static final String MSG_PREFIX = "MSG:";
+    private static final String HISTORY_RESET_PREFIX = "HISTORY_RESET:";
+    // Coalesced joins, leaves and typing indicators: "PRESENCE:<room> <text>"
+    private static final String PRESENCE_PREFIX = "PRESENCE:";
+    private final Map<String, Long> lastSeenSeqs = new ConcurrentHashMap<>();
+
+    // Ask the server for compressed history replays and room traffic (see
+    // chat.protocol.LineCompression); disable with -Dchat.client.compression=false
+    private static final boolean COMPRESSION = Boolean.parseBoolean(
+            System.getProperty("chat.client.compression", "true"));
+
+    // Rooms this connection is subscribed to; messages are tagged with their
+    // room when there is more than one
+    private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+
+    // Automatic reconnect with exponential backoff and full jitter. Tune with
+    // -Dchat.client.reconnectBaseMs=<millis> and -Dchat.client.reconnectMaxMs=<millis>.
+    private static final long RECONNECT_BASE_MS = Long.getLong("chat.client.reconnectBaseMs", 500);
+    private static final long RECONNECT_MAX_MS = Long.getLong("chat.client.reconnectMaxMs", 30000);
+    private final AtomicBoolean isReconnecting = new AtomicBoolean(false);
+    // A draining server sends "RECONNECT <delay ms>" before closing: the first
+    // attempt waits that long instead of the backoff, -1 if not restarting
+    private static final String RECONNECT_PREFIX = "RECONNECT ";
+    private volatile long restartDelayMs = -1;
+
+    // Cluster redirects: "REDIRECT <host> <port> <room>" moves the connection
+    // to the node that owns the room. Consecutive redirects are capped in
+    // case nodes briefly disagree on the owner.
+    private static final String REDIRECT_PREFIX = "REDIRECT ";
+    private static final int MAX_REDIRECTS = 3;
+    private final AtomicInteger redirectCount = new AtomicInteger();
+    private volatile String redirectedRoom;  // Room of the last redirect followed
+
+    // Lines typed while disconnected are sent once the session is resumed
+    private static final int MAX_PENDING_LINES = 100;
+    private final Lock outputLock = new ReentrantLock();
+    private final ArrayDeque<String> pendingLines = new ArrayDeque<>();
+    private boolean connected = false; // Guarded by outputLock
     
     // Client ID for session file
     private final String clientId;
     private static final String SESSION_FILE_FORMAT = "resources/main/client_session_%s.txt";
 
+    // Local history cache next to the session file. Joining a cached room
+    // shows the cached messages at once and asks the server only for newer
+    // ones. Size per room: -Dchat.client.historyCacheBytes=<bytes> (0 disables).
+    private static final long HISTORY_CACHE_BYTES = Long.getLong("chat.client.historyCacheBytes", 64 * 1024);
+    private static final int CACHED_MESSAGES_SHOWN = 20;
+    private static final long HISTORY_FLUSH_INTERVAL_MS = 2000;
+    private final HistoryCache historyCache;
+    private ScheduledExecutorService historyFlusher;
+    // Streamed bot responses being assembled per room; reader thread only
+    private final Map<String, StringBuilder> botResponses = new HashMap<>();
+    // Rooms whose resume position came from the cache rather than this run
+    private final Set<String> roomsResumedFromCache = ConcurrentHashMap.newKeySet();
+
     // SSL configuration
     private static final String TRUSTSTORE_PATH = "resources/main/client_truststore.jks";
     private static final String TRUSTSTORE_PASSWORD = "password";
@@ -47,8 +144,12 @@ public class Client {
     public Client(String serverAddress, int serverPort, String clientId) {
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
+        this.homeAddress = serverAddress;
+        this.homePort = serverPort;
         this.consoleIn = new BufferedReader(new InputStreamReader(System.in));
         this.clientId = clientId != null ? clientId : "default";
+        this.historyCache = new HistoryCache(getSessionFilePath().toAbsolutePath().getParent(),
+                "client_history_" + this.clientId + "_", HISTORY_CACHE_BYTES);
     }
 
     public void start() {
@@ -59,45 +160,23 @@ public class Client {
             System.out.println("Connecting to server at " + serverAddress + ":" + serverPort + "...");
             System.out.println("Client ID: " + clientId);
 
-            try {
-                // Connect to the server using SSL
-                socket = createSSLSocket();
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-            } catch (ConnectException e) {
-                System.err.println("Error: Could not connect to server at " + serverAddress + ":" + serverPort);
-                System.err.println("Please check that the server is running and the address is correct.");
-                return;
-            } catch (Exception e) {
-                System.err.println("Connection error: " + e.getMessage());
+            if (!connect()) {
                 return;
             }
 
-            isRunning.set(true);
-
             // Register shutdown hook for graceful shutdown
             Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
 
-            System.out.println("Connected securely to server at " + serverAddress + ":" + serverPort);
-
-            // Start a virtual thread to read server responses
-            executor = Executors.newVirtualThreadPerTaskExecutor();
-            executor.submit(this::readServerResponses);
-
-            // Wait for initial server welcome message
-            Thread.sleep(500);
-            
             // Try to authenticate with session token if we have one
             if (sessionToken != null && !sessionToken.isEmpty()) {
                 System.out.println("Attempting to authenticate with saved session token...");
-                out.println("SESSION_TOKEN:" + sessionToken);
-                // Wait a moment to see if authentication succeeds
-                Thread.sleep(1000);
+                resumeSession();
             }
 
             // Authentication loop if not yet authenticated
             while (isRunning.get() && !isAuthenticated.get()) {
                 try {
+                    renderer.awaitRendered(HANDSHAKE_TIMEOUT_MS);
                     System.out.print("Please login (/login username password): ");
                     String loginCommand = consoleIn.readLine();
 
@@ -113,21 +192,13 @@ public class Client {
                         continue;
                     }
 
-                    // Parse username for later reference
                     String[] parts = loginCommand.split("\\s+", 3);
                     if (parts.length < 3) {
                         System.out.println("Invalid login format. Use: /login username password");
                         continue;
                     }
 
-                    this.username = parts[1];
-
-                    // Send login command to server
-                    out.println(loginCommand);
-
-                    // Wait for authentication response (handled in readServerResponses)
-                    // Sleep a bit to allow response to be processed
-                    Thread.sleep(1000);
+                    login(parts[1], parts[2]);
                 } catch (IOException e) {
                     System.err.println("Error reading from console: " + e.getMessage());
                     shutdown();
@@ -137,6 +208,8 @@ public class Client {
 
             // Main thread reads user input and sends to server if authenticated
             if (isAuthenticated.get()) {
+                renderer.awaitRendered(HANDSHAKE_TIMEOUT_MS);
+
                 // Only display the login banner if we have a username and are not already in a room
                 if (username != null && !username.isEmpty() && !isInRoom.get()) {
                     System.out.println("\n============================================");
@@ -155,8 +228,8 @@ public class Client {
                         break;
                     }
 
-                    // Send the input to the server
-                    out.println(userInput);
+                    // Send the input to the server, or buffer it while reconnecting
+                    sendLine(withCachedHistory(userInput));
                 }
             }
         } catch (IOException e) {
@@ -169,6 +242,342 @@ public class Client {
         }
     }
 
+    /**
+     * Opens the connection, starts the reader thread and waits for the
+     * server's welcome message.
+     *
+     * @return true if the server greeted the client in time
+     */
+    public boolean connect() throws InterruptedException {
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        executor.submit(renderer);
+        isRunning.set(true);
+        if (historyCache.isEnabled()) {
+            historyFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "history-cache-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            historyFlusher.scheduleWithFixedDelay(historyCache::flush,
+                    HISTORY_FLUSH_INTERVAL_MS, HISTORY_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        try {
+            openConnection();
+        } catch (ConnectException e) {
+            System.err.println("Error: Could not connect to server at " + serverAddress + ":" + serverPort);
+            System.err.println("Please check that the server is running and the address is correct.");
+            shutdown();
+            return false;
+        } catch (Exception e) {
+            System.err.println("Connection error: " + e.getMessage());
+            shutdown();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Connects the socket, starts a reader thread for it and waits for the
+     * welcome message.
+     */
+    private void openConnection() throws Exception {
+        // Connect to the server using SSL
+        SSLSocket newSocket = createSSLSocket();
+        BufferedReader newIn = new BufferedReader(new InputStreamReader(newSocket.getInputStream()));
+        PrintWriter newOut = new PrintWriter(newSocket.getOutputStream(), true);
+
+        CompletableFuture<String> welcome = new CompletableFuture<>();
+        socket = newSocket;
+        in = newIn;
+        out = newOut;
+        welcomeReceived = welcome;
+        System.out.println("Connected securely to server at " + serverAddress + ":" + serverPort);
+
+        // Start a virtual thread to read server responses
+        executor.submit(() -> readServerResponses(newIn, welcome));
+
+        // Ask for sequenced room messages so the session can be resumed
+        newOut.println(COMPRESSION ? CAPS_SEQ + " " + LineCompression.CAPABILITY : CAPS_SEQ);
+
+        if (awaitEvent(welcome, "welcome message") == null) {
+            throw new IOException("Server did not send a welcome message");
+        }
+    }
+
+    /**
+     * Authenticates with the saved session token, telling the server the
+     * last message seen in each room so only missed messages are replayed.
+     *
+     * @return true if the server accepted the token
+     */
+    public boolean resumeSession() throws InterruptedException {
+        // A fresh client knows only what its history cache holds
+        for (Map.Entry<String, Long> position : historyCache.positions().entrySet()) {
+            if (lastSeenSeqs.putIfAbsent(position.getKey(), position.getValue()) == null) {
+                roomsResumedFromCache.add(position.getKey());
+            }
+        }
+        return Boolean.TRUE.equals(resume());
+    }
+
+    private Boolean resume() throws InterruptedException {
+        for (Map.Entry<String, Long> position : lastSeenSeqs.entrySet()) {
+            out.println(RESUME_PREFIX + position.getValue() + " " + position.getKey());
+        }
+        return authenticate("SESSION_TOKEN:" + sessionToken);
+    }
+
+    /**
+     * Authenticates with a username and password.
+     *
+     * @return true if the server accepted the credentials
+     */
+    public boolean login(String username, String password) throws InterruptedException {
+        this.username = username;
+        return Boolean.TRUE.equals(authenticate("/login " + username + " " + password));
+    }
+
+    /**
+     * Sends an authentication line and waits for the matching AUTH_OK or
+     * AUTH_FAIL response. Buffered lines are sent once authenticated.
+     *
+     * @return The result, or null if the server did not answer in time or
+     * the connection closed
+     */
+    private Boolean authenticate(String authLine) throws InterruptedException {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        authResult = result;
+        out.println(authLine);
+
+        Boolean authenticated = awaitEvent(result, "authentication response");
+        if (Boolean.TRUE.equals(authenticated)) {
+            flushPendingLines();
+        }
+        return authenticated;
+    }
+
+    /**
+     * Shows the cached history of a room about to be joined or subscribed
+     * to, and appends the newest cached sequence number to the command so
+     * the server sends only newer messages.
+     *
+     * @return The command to send
+     */
+    private String withCachedHistory(String input) {
+        String[] parts = input.trim().split("\\s+");
+        if (parts.length != 2 || !(parts[0].equals("/join") || parts[0].equals("/subscribe"))) {
+            return input;
+        }
+        String room = parts[1];
+        if (joinedRooms.contains(room)) {
+            return input;
+        }
+
+        long lastSeq = historyCache.lastSeq(room);
+        if (lastSeq <= 0) {
+            return input;
+        }
+        showCachedMessages(room);
+        lastSeenSeqs.merge(room, lastSeq, Math::max);
+        return parts[0] + " " + room + " " + lastSeq;
+    }
+
+    private void showCachedMessages(String room) {
+        List<String> cached = historyCache.recent(room, CACHED_MESSAGES_SHOWN);
+        if (cached.isEmpty()) {
+            return;
+        }
+        renderer.line("Cached messages in " + room + ":");
+        for (String message : cached) {
+            renderer.line(message);
+        }
+    }
+
+    /**
+     * Sends a line to the server, or buffers it while the connection is
+     * being re-established.
+     */
+    public void sendLine(String line) {
+        outputLock.lock();
+        try {
+            if (connected) {
+                out.println(line);
+            } else if (pendingLines.size() < MAX_PENDING_LINES) {
+                pendingLines.addLast(line);
+                renderer.line("(Not connected - will be sent after reconnecting)");
+            } else {
+                renderer.line("(Not connected - too many pending lines, dropped)");
+            }
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    private void flushPendingLines() {
+        outputLock.lock();
+        try {
+            while (!pendingLines.isEmpty()) {
+                out.println(pendingLines.pollFirst());
+            }
+            connected = true;
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    private void markDisconnected() {
+        outputLock.lock();
+        try {
+            connected = false;
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    /**
+     * Re-establishes a dropped connection and resumes the session. Retries
+     * with exponential backoff and full jitter, so clients dropped by the
+     * same failure do not all come back at once.
+     */
+    private void reconnect() {
+        try {
+            closeConnection();
+            for (int attempt = 1; isRunning.get(); attempt++) {
+                long delay = attempt == 1 && restartDelayMs >= 0 ? restartDelayMs : reconnectDelayMillis(attempt);
+                restartDelayMs = -1;
+                renderer.line("Reconnecting in " + delay + " ms (attempt " + attempt + ")...");
+                Thread.sleep(delay);
+                if (!isRunning.get()) {
+                    return;
+                }
+
+                // A node the client was redirected to may be gone for good;
+                // the starting server redirects it to the room's new owner
+                boolean fallBack = attempt > 2 && !(serverAddress.equals(homeAddress) && serverPort == homePort);
+                if (fallBack) {
+                    renderer.line("Falling back to " + homeAddress + ":" + homePort + "...");
+                    serverAddress = homeAddress;
+                    serverPort = homePort;
+                }
+
+                try {
+                    openConnection();
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    System.err.println("Reconnect failed: " + e.getMessage());
+                    closeConnection();
+                    continue;
+                }
+
+                Boolean resumed = resume();
+                if (resumed == null) {
+                    closeConnection();
+                    continue; // No answer in time, try again
+                }
+                if (!resumed) {
+                    renderer.line("Session could not be resumed. Please restart the client and log in again.");
+                    shutdown();
+                } else if (fallBack && redirectedRoom != null) {
+                    sendLine(joinCommand(redirectedRoom));
+                }
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            isReconnecting.set(false);
+        }
+    }
+
+    /**
+     * Moves the connection to the cluster node that owns a room: connects
+     * there, resumes the session with the same token and joins the room.
+     */
+    private void followRedirect(String host, int port, String room) {
+        if (redirectCount.incrementAndGet() > MAX_REDIRECTS) {
+            redirectCount.set(0);
+            renderer.line("ERROR: Could not join room " + room + ": the servers keep redirecting.");
+            return;
+        }
+        if (sessionToken == null || !isReconnecting.compareAndSet(false, true)) {
+            return;
+        }
+
+        boolean moved = false;
+        try {
+            renderer.line("Room " + room + " is hosted on " + host + ":" + port + ". Moving there...");
+            markDisconnected();
+            closeConnection();
+            serverAddress = host;
+            serverPort = port;
+            redirectedRoom = room;
+
+            // Rooms on the previous server are left behind; the user can join them again
+            List<String> leftBehind = new ArrayList<>(joinedRooms);
+            leftBehind.remove(room);
+            if (!leftBehind.isEmpty()) {
+                renderer.line("You left room(s) " + String.join(", ", leftBehind)
+                        + " on the previous server. Use /join <roomname> to go back to one of them.");
+            }
+            joinedRooms.clear();
+            isInRoom.set(false);
+
+            try {
+                openConnection();
+                if (Boolean.TRUE.equals(resume())) {
+                    sendLine(joinCommand(room));
+                    moved = true;
+                }
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                System.err.println("Redirect failed: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            isReconnecting.set(false);
+        }
+
+        if (!moved && isRunning.get() && isReconnecting.compareAndSet(false, true)) {
+            closeConnection();
+            reconnect();
+        }
+    }
+
+    /**
+     * @return "/join room", with the newest known message of the room so
+     * only newer ones are sent
+     */
+    private String joinCommand(String room) {
+        long since = Math.max(lastSeenSeqs.getOrDefault(room, 0L), historyCache.lastSeq(room));
+        return since > 0 ? "/join " + room + " " + since : "/join " + room;
+    }
+
+    private static long reconnectDelayMillis(int attemptNumber) {
+        long ceiling = Math.min(RECONNECT_MAX_MS, RECONNECT_BASE_MS << Math.min(attemptNumber - 1, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Waits for a protocol event completed by the reader thread.
+     *
+     * @return The event's value, or null if it timed out or the connection closed
+     */
+    private <T> T awaitEvent(CompletableFuture<T> event, String description) throws InterruptedException {
+        try {
+            return event.get(HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            System.err.println("No " + description + " from server within " + HANDSHAKE_TIMEOUT_MS + " ms");
+            return null;
+        } catch (ExecutionException e) {
+            return null; // Connection closed, reported by the reader thread
+        }
+    }
+
     private void loadSession() {
         try {
             Path sessionFilePath = getSessionFilePath();
@@ -192,7 +601,7 @@ public class Client {
             Path sessionFilePath = getSessionFilePath();
             Files.createDirectories(sessionFilePath.getParent());
             Files.writeString(sessionFilePath, sessionToken);
-            System.out.println("Session token saved for client ID: " + clientId);
+            renderer.line("Session token saved for client ID: " + clientId);
         } catch (IOException e) {
             System.err.println("Failed to save session: " + e.getMessage());
         }
@@ -238,83 +647,275 @@ public class Client {
         }
     }
 
-    private void readServerResponses() {
+    private void readServerResponses(BufferedReader reader, CompletableFuture<String> welcome) {
+        // The compressed stream, if any, starts over with each connection
+        LineCompression.Decoder streamDecoder = new LineCompression.Decoder();
         try {
             String response;
-            while (isRunning.get() && (response = in.readLine()) != null) {
-                // Check for authentication responses
-                if (response.startsWith("AUTH_OK:")) {
-                    isAuthenticated.set(true);
-                    
-                    // Check if we're automatically placed in a room (reconnection case)
-                    if (response.contains("reconnected to room:") || response.contains("joined room")) {
-                        isInRoom.set(true);
-                    }
-                    
-                    // Extract username from the welcome message
-                    if (response.contains("Welcome back, ")) {
-                        String[] parts = response.split("Welcome back, ");
-                        if (parts.length > 1) {
-                            String userPart = parts[1];
-                            // Extract username up to the next punctuation or space
-                            int endIndex = userPart.indexOf('!');
-                            if (endIndex > 0) {
-                                this.username = userPart.substring(0, endIndex);
-                            }
-                        }
-                    }
-                    
-                    // Extract session token from authentication response if present
-                    if (response.contains("Your session token:")) {
-                        String[] parts = response.split("Your session token: ");
-                        if (parts.length > 1) {
-                            sessionToken = parts[1].trim();
-                            saveSession();
-                        }
-                    }
-                    
-                    System.out.println(response);
-                } else if (response.startsWith("AUTH_FAIL:")) {
-                    System.out.println(response);
-                    // If too many failed attempts, server will close the connection
-                    if (response.contains("Too many failed")) {
-                        shutdown();
-                    }
+            while (isRunning.get() && (response = reader.readLine()) != null) {
+                // The first line is the server's greeting
+                welcome.complete(response);
+                if (response.startsWith(LineCompression.STREAM_PREFIX)) {
+                    handleServerLines(streamDecoder.decode(response.substring(LineCompression.STREAM_PREFIX.length())));
+                } else if (response.startsWith(LineCompression.BLOCK_PREFIX)) {
+                    handleServerLines(LineCompression.decodeBlock(response.substring(LineCompression.BLOCK_PREFIX.length())));
                 } else {
-                    // Track room join/leave events
-                    if (response.startsWith("You joined room:")) {
-                        isInRoom.set(true);
-                    } else if (response.startsWith("You left room:")) {
-                        isInRoom.set(false);
-                    }
-                    
-                    // Display the server message
-                    System.out.println(response);
+                    handleServerLine(response);
                 }
             }
         } catch (SocketException e) {
-            if (isRunning.get()) {
+            if (isRunning.get() && !isReconnecting.get() && restartDelayMs < 0) {
                 System.err.println("Connection to server lost: " + e.getMessage());
             }
         } catch (IOException e) {
-            if (isRunning.get()) {
+            if (isRunning.get() && !isReconnecting.get()) {
                 System.err.println("Error reading from server: " + e.getMessage());
             }
         } finally {
-            if (isRunning.get()) {
-                System.out.println("Server connection closed.");
+            streamDecoder.close();
+            welcome.completeExceptionally(new IOException("Connection closed"));
+
+            // A connection replaced after a redirect ends quietly
+            if (reader == in) {
+                connectionClosed();
+            }
+        }
+    }
+
+    /**
+     * Called when the current connection closes: resumes the session on a
+     * new connection, or shuts down if there is no session to resume.
+     */
+    private void connectionClosed() {
+        // Release anyone still waiting for an authentication response
+        authResult.completeExceptionally(new IOException("Connection closed"));
+        markDisconnected();
+
+        if (isRunning.get()) {
+            if (isAuthenticated.get() && sessionToken != null) {
+                // Resume the session on a new connection
+                if (isReconnecting.compareAndSet(false, true)) {
+                    renderer.line(restartDelayMs >= 0 ? "Server is restarting." : "Connection to server lost.");
+                    executor.submit(this::reconnect);
+                }
+            } else {
+                renderer.line("Server connection closed.");
                 shutdown();
             }
         }
     }
 
+    /**
+     * Handles the lines of a decompressed frame.
+     */
+    private void handleServerLines(String lines) {
+        for (String line : lines.split("\n")) {
+            handleServerLine(line);
+        }
+    }
+
+    /**
+     * Decodes one server line, updates the client state it affects and queues
+     * it for rendering. Room messages, by far the most frequent lines, are
+     * recognized by a single prefix check.
+     */
+    private void handleServerLine(String response) {
+        // Sequenced room message: "MSG:<seq> <room> <text>"
+        if (response.startsWith(MSG_PREFIX)) {
+            int seqEnd = response.indexOf(' ', MSG_PREFIX.length());
+            int roomEnd = seqEnd < 0 ? -1 : response.indexOf(' ', seqEnd + 1);
+            if (roomEnd < 0) {
+                renderer.message(response);
+                return;
+            }
+            String room = response.substring(seqEnd + 1, roomEnd);
+            String text = response.substring(roomEnd + 1);
+            historyCache.append(room, recordSeen(room, response.substring(MSG_PREFIX.length(), seqEnd)), text);
+            renderer.message(roomTag(room) + text);
+            return;
+        }
+
+        // The room's history was reset on the server: "HISTORY_RESET:<room>"
+        if (response.startsWith(HISTORY_RESET_PREFIX)) {
+            String room = response.substring(HISTORY_RESET_PREFIX.length()).trim();
+            historyCache.reset(room);
+            lastSeenSeqs.remove(room);
+            return;
+        }
+
+        // Presence updates are not part of the history, so they are not cached
+        if (response.startsWith(PRESENCE_PREFIX)) {
+            int roomEnd = response.indexOf(' ', PRESENCE_PREFIX.length());
+            if (roomEnd < 0) {
+                renderer.message(response);
+            } else {
+                renderer.message(roomTag(response.substring(PRESENCE_PREFIX.length(), roomEnd))
+                        + response.substring(roomEnd + 1));
+            }
+            return;
+        }
+
+        // The room is owned by another cluster node: "REDIRECT <host> <port> <room>"
+        if (response.startsWith(REDIRECT_PREFIX)) {
+            String[] parts = response.substring(REDIRECT_PREFIX.length()).trim().split("\\s+");
+            if (parts.length == 3) {
+                try {
+                    int port = Integer.parseInt(parts[1]);
+                    executor.submit(() -> followRedirect(parts[0], port, parts[2]));
+                    return;
+                } catch (NumberFormatException e) {
+                    // Malformed, show it as is
+                }
+            }
+            renderer.line(response);
+            return;
+        }
+
+        // The server is being replaced and assigned this client a time to come back
+        if (response.startsWith(RECONNECT_PREFIX)) {
+            try {
+                restartDelayMs = Math.max(0, Long.parseLong(response.substring(RECONNECT_PREFIX.length()).trim()));
+                return;
+            } catch (NumberFormatException e) {
+                // Malformed, show it as is
+            }
+            renderer.line(response);
+            return;
+        }
+
+        // Streamed AI output is printed in place as it arrives: "BOT_PARTIAL:<room> <chunk>"
+        if (response.startsWith(BOT_PARTIAL_PREFIX)) {
+            int roomEnd = response.indexOf(' ', BOT_PARTIAL_PREFIX.length());
+            String room = roomEnd < 0 ? "" : response.substring(BOT_PARTIAL_PREFIX.length(), roomEnd);
+            String chunk = LineEscaping.unescape(roomEnd < 0 ? "" : response.substring(roomEnd + 1));
+            if (historyCache.isEnabled()) {
+                botResponses.computeIfAbsent(room, r -> new StringBuilder()).append(chunk);
+            }
+            renderer.botPartial(roomTag(room) + "Bot: ", chunk);
+            return;
+        }
+        // End of a streamed response: "BOT_DONE:<seq> <room>"
+        if (response.startsWith(BOT_DONE)) {
+            int seqEnd = response.indexOf(' ', BOT_DONE.length());
+            String room = seqEnd < 0 ? "" : response.substring(seqEnd + 1);
+            StringBuilder botResponse = botResponses.remove(room);
+            if (seqEnd > BOT_DONE.length()) {
+                long seq = recordSeen(room, response.substring(BOT_DONE.length() + 1, seqEnd));
+                if (botResponse != null) {
+                    // Stored the way the server keeps it in the room history
+                    historyCache.append(room, seq, "Bot: " + botResponse);
+                }
+            }
+            renderer.botDone(roomTag(room) + "Bot: ");
+            return;
+        }
+
+        // Check for authentication responses
+        if (response.startsWith("AUTH_OK:")) {
+            isAuthenticated.set(true);
+
+            // Check if we're automatically placed in rooms (reconnection case)
+            int roomsStart = response.indexOf("reconnected to room");
+            if (roomsStart >= 0) {
+                String rooms = response.substring(response.indexOf(':', roomsStart) + 1).trim();
+                for (String room : rooms.split(",\\s*")) {
+                    joinedRooms.add(room);
+                }
+                renderer.line(response);
+                // Cached history comes before the missed messages that follow
+                for (String room : rooms.split(",\\s*")) {
+                    if (roomsResumedFromCache.contains(room)) {
+                        showCachedMessages(room);
+                    }
+                }
+                roomsResumedFromCache.clear();
+                isInRoom.set(true);
+            }
+
+            // Extract username from the welcome message
+            if (response.contains("Welcome back, ")) {
+                String[] parts = response.split("Welcome back, ");
+                if (parts.length > 1) {
+                    String userPart = parts[1];
+                    // Extract username up to the next punctuation or space
+                    int endIndex = userPart.indexOf('!');
+                    if (endIndex > 0) {
+                        this.username = userPart.substring(0, endIndex);
+                    }
+                }
+            }
+
+            // Extract session token from authentication response if present
+            if (response.contains("Your session token:")) {
+                String[] parts = response.split("Your session token: ");
+                if (parts.length > 1) {
+                    sessionToken = parts[1].trim();
+                    saveSession();
+                }
+            }
+
+            if (roomsStart < 0) {
+                renderer.line(response);
+            }
+            authResult.complete(true);
+        } else if (response.startsWith("AUTH_FAIL:")) {
+            renderer.line(response);
+            authResult.complete(false);
+            // If too many failed attempts, server will close the connection
+            if (response.contains("Too many failed")) {
+                shutdown();
+            }
+        } else {
+            // Track room join/leave events
+            if (response.startsWith("You joined room:")) {
+                String room = response.substring("You joined room:".length()).trim();
+                int end = room.indexOf(' ');
+                joinedRooms.add(end < 0 ? room : room.substring(0, end));
+                isInRoom.set(true);
+                redirectCount.set(0);
+            } else if (response.startsWith("You left room:")) {
+                String room = response.substring("You left room:".length()).trim();
+                joinedRooms.remove(room);
+                lastSeenSeqs.remove(room);
+                isInRoom.set(!joinedRooms.isEmpty());
+            }
+
+            // Display the server message
+            renderer.line(response);
+        }
+    }
+
+    /**
+     * Records the sequence number of the latest message seen in a room.
+     *
+     * @return The parsed sequence number, or 0 if it is not a number
+     */
+    private long recordSeen(String room, String seq) {
+        try {
+            long parsed = Long.parseLong(seq);
+            lastSeenSeqs.merge(room, parsed, Math::max);
+            return parsed;
+        } catch (NumberFormatException e) {
+            // Not a sequenced message, nothing to record
+            return 0;
+        }
+    }
+
+    /**
+     * @return "[room] " when subscribed to several rooms, otherwise nothing
+     */
+    private String roomTag(String room) {
+        return joinedRooms.size() > 1 && !room.isEmpty() ? "[" + room + "] " : "";
+    }
+
     public void shutdown() {
         // Only execute shutdown once
         if (!isRunning.getAndSet(false)) {
             return;
         }
 
-        // Close executor
+        // Let the renderer write what is already queued, then close executor
+        renderer.stop();
         if (executor != null) {
             executor.shutdown();
             try {
@@ -330,13 +931,37 @@ public class Client {
         // Close resources
         closeResources();
 
+        // Keep what was seen for the next run
+        if (historyFlusher != null) {
+            historyFlusher.shutdownNow();
+        }
+        historyCache.flush();
+
         System.out.println("Disconnected from server. Goodbye!");
     }
 
     private void closeResources() {
+        if (out != null) {
+            out.println("/exit"); // Try to notify server before disconnecting
+        }
+        closeConnection();
+
+        // Always close console reader last
+        try {
+            if (consoleIn != null) {
+                consoleIn.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing console reader: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the current socket and its streams.
+     */
+    private void closeConnection() {
         try {
             if (out != null) {
-                out.println("/exit"); // Try to notify server before disconnecting
                 out.close();
             }
             if (in != null) {
@@ -349,15 +974,6 @@ public class Client {
             // Just log and continue with shutdown
             System.err.println("Error closing network resources: " + e.getMessage());
         }
-
-        // Always close console reader last
-        try {
-            if (consoleIn != null) {
-                consoleIn.close();
-            }
-        } catch (IOException e) {
-            System.err.println("Error closing console reader: " + e.getMessage());
-        }
     }
 
     public static void main(String[] args) {
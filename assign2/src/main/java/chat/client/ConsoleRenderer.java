@@ -0,0 +1,223 @@
+package chat.client;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rendering stage of the client. The reader thread decodes server lines and
+ * queues them here; a single renderer thread writes them to the terminal in
+ * batches, with one write and flush per batch instead of one per line, so a
+ * slow terminal never stalls reading from the socket.
+ *
+ * When the terminal still cannot keep up and the backlog exceeds its limit,
+ * further chat messages are skipped and summarized in an "N messages skipped"
+ * notice, printed at most once per interval. Control lines (login results,
+ * room events, streamed bot output) are never skipped.
+ */
+public class ConsoleRenderer implements Runnable {
+
+    private static final int MAX_BATCH_SIZE = 512;
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private enum Kind { LINE, BOT_PARTIAL, BOT_DONE, BARRIER }
+
+    private static class Event {
+        final Kind kind;
+        final String label;
+        final String text;
+        final CompletableFuture<Void> rendered;
+
+        Event(Kind kind, String label, String text, CompletableFuture<Void> rendered) {
+            this.kind = kind;
+            this.label = label;
+            this.text = text;
+            this.rendered = rendered;
+        }
+    }
+
+    private final BlockingQueue<Event> queue = new LinkedBlockingQueue<>();
+    private final PrintStream console;
+    private final int backlogLimit;
+    private final long skipNoticeIntervalMs;
+    private volatile boolean running = true;
+
+    // Skipped chat messages not yet reported, and totals for the session
+    private final AtomicLong unreportedSkips = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private long lastSkipNoticeAt = 0;
+
+    // Label of the bot stream being printed in place, or null. Only touched
+    // by the renderer thread.
+    private String streamLabel = null;
+
+    /**
+     * @param console Where output is written
+     * @param backlogLimit Queued lines after which chat messages are skipped;
+     * 0 never skips
+     * @param skipNoticeIntervalMs Minimum time between two skip notices
+     */
+    public ConsoleRenderer(PrintStream console, int backlogLimit, long skipNoticeIntervalMs) {
+        this.console = console;
+        this.backlogLimit = Math.max(0, backlogLimit);
+        this.skipNoticeIntervalMs = skipNoticeIntervalMs;
+    }
+
+    /**
+     * Queues a chat message. Skipped if the renderer is too far behind.
+     */
+    public void message(String text) {
+        if (backlogLimit > 0 && queue.size() >= backlogLimit) {
+            unreportedSkips.incrementAndGet();
+            skippedCount.incrementAndGet();
+            return;
+        }
+        queue.add(new Event(Kind.LINE, null, text, null));
+    }
+
+    /**
+     * Queues a control or status line, which is never skipped.
+     */
+    public void line(String text) {
+        queue.add(new Event(Kind.LINE, null, text, null));
+    }
+
+    /**
+     * Queues a chunk of a streamed bot response, printed in place after its
+     * label. A chunk with a different label (another room's bot) starts a
+     * new line.
+     */
+    public void botPartial(String label, String chunk) {
+        queue.add(new Event(Kind.BOT_PARTIAL, label, chunk, null));
+    }
+
+    /**
+     * Queues the end of the streamed bot response with the given label.
+     */
+    public void botDone(String label) {
+        queue.add(new Event(Kind.BOT_DONE, label, null, null));
+    }
+
+    /**
+     * Waits until everything queued so far has been written, so output from
+     * other threads (such as prompts) appears after it.
+     *
+     * @param timeoutMs Maximum time to wait
+     */
+    public void awaitRendered(long timeoutMs) throws InterruptedException {
+        CompletableFuture<Void> rendered = new CompletableFuture<>();
+        queue.add(new Event(Kind.BARRIER, null, null, rendered));
+        try {
+            rendered.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // Renderer stopped or behind; carry on without ordering guarantee
+        }
+    }
+
+    /**
+     * Stops the renderer once everything queued so far has been written.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * @return Number of chat messages skipped since the renderer started
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    @Override
+    public void run() {
+        List<Event> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        List<CompletableFuture<Void>> barriers = new ArrayList<>();
+        StringBuilder output = new StringBuilder();
+
+        try {
+            while (running || !queue.isEmpty()) {
+                Event first = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    for (Event event : batch) {
+                        if (event.kind == Kind.BARRIER) {
+                            barriers.add(event.rendered);
+                        } else {
+                            append(output, event);
+                        }
+                    }
+                    batch.clear();
+                }
+                appendSkipNotice(output);
+
+                if (output.length() > 0) {
+                    console.print(output);
+                    console.flush();
+                    output.setLength(0);
+                }
+                for (CompletableFuture<Void> barrier : barriers) {
+                    barrier.complete(null);
+                }
+                barriers.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void append(StringBuilder output, Event event) {
+        switch (event.kind) {
+            case BOT_PARTIAL:
+                if (!event.label.equals(streamLabel)) {
+                    endBotStream(output);
+                    output.append(event.label);
+                    streamLabel = event.label;
+                }
+                output.append(event.text);
+                break;
+            case BOT_DONE:
+                if (event.label.equals(streamLabel)) {
+                    endBotStream(output);
+                }
+                break;
+            default:
+                // Another message interrupted a stream; start it on a fresh line
+                endBotStream(output);
+                output.append(event.text).append(System.lineSeparator());
+                break;
+        }
+    }
+
+    private void endBotStream(StringBuilder output) {
+        if (streamLabel != null) {
+            output.append(System.lineSeparator());
+            streamLabel = null;
+        }
+    }
+
+    /**
+     * Reports skipped messages, at most once per notice interval.
+     */
+    private void appendSkipNotice(StringBuilder output) {
+        if (unreportedSkips.get() == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastSkipNoticeAt < skipNoticeIntervalMs) {
+            return;
+        }
+
+        lastSkipNoticeAt = now;
+        endBotStream(output);
+        output.append("[")
+                .append(unreportedSkips.getAndSet(0))
+                .append(" messages skipped - the terminal could not keep up]")
+                .append(System.lineSeparator());
+    }
+}
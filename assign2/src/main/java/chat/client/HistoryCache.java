@@ -0,0 +1,276 @@
+package chat.client;
+
+import chat.protocol.LineEscaping;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Local cache of the messages seen in each room, kept next to the client's
+ * session file so a later join can show them immediately and ask the server
+ * only for newer messages.
+ *
+ * Each room is stored in its own file as "<seq> <text>" lines, oldest first,
+ * with line breaks escaped. A room's cache is bounded in bytes; the oldest
+ * messages are dropped first. Rooms are loaded on first use and written back
+ * by {@link #flush()}.
+ */
+public class HistoryCache {
+
+    private final Path directory;
+    private final String filePrefix;
+    private final long maxBytesPerRoom;
+
+    private final Map<String, RoomHistory> rooms = new HashMap<>();
+    private final Lock lock = new ReentrantLock();
+
+    private static class RoomHistory {
+        final ArrayDeque<Long> seqs = new ArrayDeque<>();
+        final ArrayDeque<String> messages = new ArrayDeque<>();
+        long bytes = 0;
+        boolean dirty = false;
+
+        long lastSeq() {
+            return seqs.isEmpty() ? 0 : seqs.peekLast();
+        }
+    }
+
+    /**
+     * @param directory Directory holding the cache files
+     * @param filePrefix Prefix of the cache file names, e.g. "client_history_default_"
+     * @param maxBytesPerRoom Approximate size limit of each room's cache
+     */
+    public HistoryCache(Path directory, String filePrefix, long maxBytesPerRoom) {
+        this.directory = directory;
+        this.filePrefix = filePrefix;
+        this.maxBytesPerRoom = maxBytesPerRoom;
+    }
+
+    public boolean isEnabled() {
+        return maxBytesPerRoom > 0;
+    }
+
+    /**
+     * Records a message. Messages may arrive out of order, as the server
+     * sends to a room's members in parallel, so an older message is inserted
+     * in order. Duplicates are ignored.
+     */
+    public void append(String room, long seq, String message) {
+        if (!isEnabled() || seq <= 0) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            RoomHistory history = load(room);
+
+            // Set aside the newer messages, then put them back after this one
+            ArrayDeque<Long> newerSeqs = new ArrayDeque<>();
+            ArrayDeque<String> newerMessages = new ArrayDeque<>();
+            while (!history.seqs.isEmpty() && history.seqs.peekLast() > seq) {
+                newerSeqs.addFirst(history.seqs.pollLast());
+                newerMessages.addFirst(history.messages.pollLast());
+            }
+            boolean duplicate = !history.seqs.isEmpty() && history.seqs.peekLast() == seq;
+            if (!duplicate) {
+                history.seqs.addLast(seq);
+                history.messages.addLast(message);
+                history.bytes += entrySize(message);
+            }
+            history.seqs.addAll(newerSeqs);
+            history.messages.addAll(newerMessages);
+            if (duplicate) {
+                return;
+            }
+
+            while (history.bytes > maxBytesPerRoom && history.messages.size() > 1) {
+                history.seqs.pollFirst();
+                history.bytes -= entrySize(history.messages.pollFirst());
+            }
+            history.dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops a room's cache, because the server reset the room's history.
+     */
+    public void reset(String room) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            RoomHistory history = load(room);
+            history.seqs.clear();
+            history.messages.clear();
+            history.bytes = 0;
+            history.dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Sequence number of the newest cached message, or 0 if none
+     */
+    public long lastSeq(String room) {
+        if (!isEnabled()) {
+            return 0;
+        }
+
+        lock.lock();
+        try {
+            return load(room).lastSeq();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Up to {@code count} of the newest cached messages, oldest first
+     */
+    public List<String> recent(String room, int count) {
+        if (!isEnabled()) {
+            return new ArrayList<>();
+        }
+
+        lock.lock();
+        try {
+            List<String> messages = new ArrayList<>(load(room).messages);
+            return messages.subList(Math.max(0, messages.size() - count), messages.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Newest cached sequence number of every room with a cache file
+     */
+    public Map<String, Long> positions() {
+        Map<String, Long> positions = new HashMap<>();
+        if (!isEnabled() || !Files.isDirectory(directory)) {
+            return positions;
+        }
+
+        Set<String> roomNames = new HashSet<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(filePrefix) && name.endsWith(".txt"))
+                    .forEach(name -> roomNames.add(URLDecoder.decode(
+                            name.substring(filePrefix.length(), name.length() - 4), StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            System.err.println("Failed to list history cache: " + e.getMessage());
+        }
+
+        for (String room : roomNames) {
+            long seq = lastSeq(room);
+            if (seq > 0) {
+                positions.put(room, seq);
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Writes every changed room back to disk. Each file is replaced
+     * atomically, so a crash leaves either the old or the new cache.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            for (Map.Entry<String, RoomHistory> entry : rooms.entrySet()) {
+                RoomHistory history = entry.getValue();
+                if (!history.dirty) {
+                    continue;
+                }
+
+                StringBuilder content = new StringBuilder((int) Math.min(Integer.MAX_VALUE, history.bytes));
+                Iterator<Long> seqs = history.seqs.iterator();
+                for (String message : history.messages) {
+                    content.append(seqs.next()).append(' ').append(LineEscaping.escape(message)).append('\n');
+                }
+
+                try {
+                    Files.createDirectories(directory);
+                    Path file = fileFor(entry.getKey());
+                    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                    Files.writeString(temp, content);
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    history.dirty = false;
+                } catch (IOException e) {
+                    System.err.println("Failed to save history cache for room " + entry.getKey() + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a room's history, reading its cache file on first use.
+     */
+    private RoomHistory load(String room) {
+        RoomHistory history = rooms.get(room);
+        if (history != null) {
+            return history;
+        }
+
+        history = new RoomHistory();
+        rooms.put(room, history);
+
+        Path file = fileFor(room);
+        if (!Files.exists(file)) {
+            return history;
+        }
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                int space = line.indexOf(' ');
+                if (space <= 0) {
+                    continue;
+                }
+                try {
+                    long seq = Long.parseLong(line.substring(0, space));
+                    if (seq <= history.lastSeq()) {
+                        continue; // Corrupt or out of order, keep what is consistent
+                    }
+                    String message = LineEscaping.unescape(line.substring(space + 1));
+                    history.seqs.addLast(seq);
+                    history.messages.addLast(message);
+                    history.bytes += entrySize(message);
+                } catch (NumberFormatException e) {
+                    // Skip malformed line
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to load history cache for room " + room + ": " + e.getMessage());
+        }
+        return history;
+    }
+
+    private Path fileFor(String room) {
+        // Encode the room name so it is always a single, safe file name
+        return directory.resolve(filePrefix + URLEncoder.encode(room, StandardCharsets.UTF_8) + ".txt");
+    }
+
+    private static long entrySize(String message) {
+        return message.length() + 16L; // Text plus sequence number and separators
+    }
+}
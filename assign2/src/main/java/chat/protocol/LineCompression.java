@@ -0,0 +1,161 @@
+package chat.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of protocol lines, shared by client and server.
+ *
+ * Clients that send "CAPS:DEFLATE" may receive two kinds of frames, each a
+ * single text line so they pass through the existing line-based TLS stream:
+ * <ul>
+ * <li>"ZB:&lt;base64&gt;" - a self-contained block holding several lines, used
+ * for bulk transfers such as history replay</li>
+ * <li>"Z:&lt;base64&gt;" - the next chunk of a per-connection compressed
+ * stream, flushed at a line boundary, used for live traffic of busy rooms</li>
+ * </ul>
+ * Both are zlib data with a preset dictionary of common protocol text, so
+ * even short messages compress well. Decoded frames hold one or more lines
+ * separated by '\n'.
+ * Lines that are not worth compressing are still sent as plain text.
+ */
+public final class LineCompression {
+
+    public static final String CAPABILITY = "DEFLATE";
+    public static final String BLOCK_PREFIX = "ZB:";
+    public static final String STREAM_PREFIX = "Z:";
+
+    /**
+     * Preset dictionary: text that frequently occurs in protocol lines.
+     * Deflate finds matches more cheaply at short distances, so the most
+     * common strings come last. Changing it breaks compatibility between
+     * clients and servers of different versions.
+     */
+    private static final byte[] DICTIONARY = (
+            "Available rooms: (AI Room) Room ' created successfully with prompt: "
+            + "ERROR: You are not in room Active room: You left room: "
+            + "the and you that this what have for with are was not but just "
+            + "Missed messages in Recent messages in New messages: "
+            + "You joined room: [ has reconnected to the room] "
+            + "[ has left the room] [ has joined the room] "
+            + "BOT_PARTIAL:BOT_DONE:0 Bot: MSG:1 MSG:").getBytes(StandardCharsets.UTF_8);
+
+    private LineCompression() {
+    }
+
+    /**
+     * Compresses lines into a self-contained "ZB:" frame.
+     */
+    public static String encodeBlock(String lines) {
+        Deflater deflater = newDeflater();
+        try {
+            deflater.setInput(lines.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                compressed.write(buffer, 0, count);
+            }
+            return BLOCK_PREFIX + Base64.getEncoder().encodeToString(compressed.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses the payload of a "ZB:" frame (without its prefix).
+     *
+     * @throws IOException If the payload is not a valid block
+     */
+    public static String decodeBlock(String payload) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            return inflate(inflater, payload);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static Deflater newDeflater() {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        deflater.setDictionary(DICTIONARY);
+        return deflater;
+    }
+
+    private static String inflate(Inflater inflater, String payload) throws IOException {
+        try {
+            inflater.setInput(Base64.getDecoder().decode(payload));
+            ByteArrayOutputStream lines = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            while (true) {
+                int count = inflater.inflate(buffer);
+                if (count > 0) {
+                    lines.write(buffer, 0, count);
+                } else if (inflater.needsDictionary()) {
+                    inflater.setDictionary(DICTIONARY);
+                } else {
+                    break; // Input consumed or block finished
+                }
+            }
+            return lines.toString(StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException | DataFormatException e) {
+            throw new IOException("Invalid compressed frame: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Sending side of a compressed stream. Not thread-safe: callers must
+     * encode and write each frame under the same lock so frames reach the
+     * peer in the order they were encoded.
+     */
+    public static class Encoder {
+        private final Deflater deflater = newDeflater();
+        private final byte[] buffer = new byte[4096];
+
+        /**
+         * Compresses lines into the next "Z:" frame of the stream.
+         */
+        public String encode(String lines) {
+            deflater.setInput(lines.getBytes(StandardCharsets.UTF_8));
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            int count;
+            do {
+                // SYNC_FLUSH ends the frame on a byte boundary, so the peer
+                // can decode everything sent so far
+                count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, count);
+            } while (count == buffer.length);
+            return STREAM_PREFIX + Base64.getEncoder().encodeToString(compressed.toByteArray());
+        }
+
+        public void close() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Receiving side of a compressed stream; one per connection.
+     */
+    public static class Decoder {
+        private final Inflater inflater = new Inflater();
+
+        /**
+         * Decompresses the payload of a "Z:" frame (without its prefix).
+         *
+         * @throws IOException If the frame does not continue the stream
+         */
+        public String decode(String payload) throws IOException {
+            return inflate(inflater, payload);
+        }
+
+        public void close() {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package chat.protocol;
+
+/**
+ * Escaping of text that must fit on a single line, shared by client and
+ * server: line breaks become "\n" and "\r", and backslashes are doubled.
+ * Used for streamed bot chunks, cluster frames, the server snapshot and the
+ * client's history cache.
+ */
+public final class LineEscaping {
+
+    private LineEscaping() {
+    }
+
+    public static String escape(String text) {
+        return text.replace("\\", "\\\\")
+                .replace("\n", "\\n")
+                .replace("\r", "\\r");
+    }
+
+    public static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                if (next == 'n') {
+                    sb.append('\n');
+                } else if (next == 'r') {
+                    sb.append('\r');
+                } else {
+                    sb.append(next);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
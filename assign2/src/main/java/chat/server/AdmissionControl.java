@@ -0,0 +1,160 @@
+package chat.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits what clients can make the server do: how many connections it
+ * holds (in total and per client address), and how fast each user can send
+ * lines and each room can receive messages ({@link TokenBucket}s). A limit
+ * of 0 disables it.
+ *
+ * Checks only count and compare, so rejecting is cheaper than serving.
+ * Rejections are counted per limit for the periodic log.
+ */
+public class AdmissionControl {
+
+    private final int maxConnections;
+    private final int maxConnectionsPerAddress;
+    private final double userRate;
+    private final int userBurst;
+    private final double roomRate;
+    private final int roomBurst;
+
+    private int connections = 0;  // Guarded by connectionsLock
+    private final Map<String, Integer> connectionsPerAddress = new HashMap<>();  // Guarded by connectionsLock
+    private final Lock connectionsLock = new ReentrantLock();
+
+    private final Map<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> roomBuckets = new ConcurrentHashMap<>();
+
+    // Metrics
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong rejectedAddressConnections = new AtomicLong();
+    private final AtomicLong rejectedUserLines = new AtomicLong();
+    private final AtomicLong rejectedRoomMessages = new AtomicLong();
+
+    /**
+     * @param maxConnections Connections held at once
+     * @param maxConnectionsPerAddress Connections held at once from one client address
+     * @param userRate Lines (messages and commands) per second per user
+     * @param userBurst Lines a user can send at once
+     * @param roomRate Messages per second posted to one room
+     * @param roomBurst Messages that can be posted to one room at once
+     */
+    public AdmissionControl(int maxConnections, int maxConnectionsPerAddress,
+            double userRate, int userBurst, double roomRate, int roomBurst) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+        this.userRate = userRate;
+        this.userBurst = userBurst;
+        this.roomRate = roomRate;
+        this.roomBurst = roomBurst;
+    }
+
+    /**
+     * Admits a new connection, which must be released with {@link #release}
+     * when it closes.
+     *
+     * @param address Client address
+     * @return null if admitted, otherwise the reason to give the client
+     */
+    public String admit(String address) {
+        connectionsLock.lock();
+        try {
+            if (maxConnections > 0 && connections >= maxConnections) {
+                rejectedConnections.incrementAndGet();
+                return "The server is full. Please try again later.";
+            }
+            int fromAddress = connectionsPerAddress.getOrDefault(address, 0);
+            if (maxConnectionsPerAddress > 0 && fromAddress >= maxConnectionsPerAddress) {
+                rejectedAddressConnections.incrementAndGet();
+                return "Too many connections from your address.";
+            }
+            connections++;
+            connectionsPerAddress.put(address, fromAddress + 1);
+            return null;
+        } finally {
+            connectionsLock.unlock();
+        }
+    }
+
+    public void release(String address) {
+        connectionsLock.lock();
+        try {
+            connections--;
+            connectionsPerAddress.computeIfPresent(address, (a, count) -> count > 1 ? count - 1 : null);
+        } finally {
+            connectionsLock.unlock();
+        }
+    }
+
+    /**
+     * Takes a token for a line sent by a user, shared by all of the user's
+     * connections.
+     *
+     * @return false if the user is sending too fast
+     */
+    public boolean allowUser(String username) {
+        if (userRate <= 0 || username == null) {
+            return true;
+        }
+        if (userBuckets.computeIfAbsent(username, u -> new TokenBucket(userRate, userBurst)).tryAcquire()) {
+            return true;
+        }
+        rejectedUserLines.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Takes a token for a message posted to a room by any of its members.
+     *
+     * @return false if the room receives messages too fast
+     */
+    public boolean allowRoom(String roomName) {
+        if (roomRate <= 0) {
+            return true;
+        }
+        if (roomBuckets.computeIfAbsent(roomName, r -> new TokenBucket(roomRate, roomBurst)).tryAcquire()) {
+            return true;
+        }
+        rejectedRoomMessages.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Forgets the buckets that have refilled completely; a new bucket starts
+     * full, so this changes no limit.
+     */
+    public void evictIdleBuckets() {
+        userBuckets.values().removeIf(TokenBucket::isFull);
+        roomBuckets.values().removeIf(TokenBucket::isFull);
+    }
+
+    /**
+     * @return Connection counts and rejections per limit, for the periodic log
+     */
+    public String getMetricsSummary() {
+        int open;
+        int addresses;
+        connectionsLock.lock();
+        try {
+            open = connections;
+            addresses = connectionsPerAddress.size();
+        } finally {
+            connectionsLock.unlock();
+        }
+        return "Admission: connections=" + open + "/" + (maxConnections > 0 ? maxConnections : "unlimited")
+                + " addresses=" + addresses
+                + " rejectedConnections=" + rejectedConnections.get()
+                + " rejectedPerAddress=" + rejectedAddressConnections.get()
+                + " rejectedUserLines=" + rejectedUserLines.get()
+                + " rejectedRoomMessages=" + rejectedRoomMessages.get()
+                + " userBuckets=" + userBuckets.size()
+                + " roomBuckets=" + roomBuckets.size();
+    }
+}
@@ -0,0 +1,182 @@
+package chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Delivers room traffic to the members of a room. Rooms below the size
+ * threshold are served by a simple loop on the sender's thread. Larger rooms
+ * are split into partitions that are sent to in parallel: the sender's
+ * thread takes the first partition and a shared pool of worker threads the
+ * others. A delivery returns once every partition is done, so the lines a
+ * member receives from one sender stay in order.
+ *
+ * Measured deliveries record the time from the start of the delivery to the
+ * first and to the last member reached, reported as percentiles over the
+ * deliveries since the last report.
+ */
+public class BroadcastFanout {
+
+    /** Fan-out without worker threads: every room is served by the loop. */
+    static final BroadcastFanout SEQUENTIAL = new BroadcastFanout(Integer.MAX_VALUE, 1, 1);
+
+    private static final int MAX_SAMPLES = 4096;
+
+    private final int threshold;
+    private final int partitionSize;
+    private final int parallelism;
+    private final ExecutorService workers;  // Null without parallelism
+
+    // Metrics
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong parallelDeliveries = new AtomicLong();
+    private final LatencySamples firstDelivery = new LatencySamples();
+    private final LatencySamples lastDelivery = new LatencySamples();
+
+    /**
+     * @param threshold Members from which a room is fanned out in parallel
+     * @param partitionSize Minimum members per partition
+     * @param parallelism Partitions sent to at once, including the one on
+     * the sender's thread; 1 never fans out in parallel
+     */
+    public BroadcastFanout(int threshold, int partitionSize, int parallelism) {
+        this.threshold = Math.max(1, threshold);
+        this.partitionSize = Math.max(1, partitionSize);
+        this.parallelism = Math.max(1, parallelism);
+
+        if (this.parallelism > 1) {
+            AtomicInteger threadCount = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(this.parallelism - 1, runnable -> {
+                Thread thread = new Thread(runnable, "fanout-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            workers = null;
+        }
+    }
+
+    /**
+     * Sends to every recipient and returns once all were sent to.
+     *
+     * @param send Sends to one recipient; returns false if it was skipped
+     * (e.g. the sender or a disconnected member)
+     * @param measure true to record the delivery's latencies
+     */
+    public void deliver(List<ClientHandler> recipients, Predicate<ClientHandler> send, boolean measure) {
+        long start = System.nanoTime();
+        AtomicLong firstSentAt = measure ? new AtomicLong() : null;
+
+        int size = recipients.size();
+        int partitions = Math.min(parallelism, (size + partitionSize - 1) / partitionSize);
+        if (workers == null || size < threshold || partitions <= 1) {
+            sendPartition(recipients, send, firstSentAt);
+        } else {
+            int perPartition = (size + partitions - 1) / partitions;
+            List<CompletableFuture<Void>> others = new ArrayList<>(partitions - 1);
+            for (int from = perPartition; from < size; from += perPartition) {
+                List<ClientHandler> partition = recipients.subList(from, Math.min(size, from + perPartition));
+                others.add(submitPartition(partition, send, firstSentAt));
+            }
+            sendPartition(recipients.subList(0, perPartition), send, firstSentAt);
+            CompletableFuture.allOf(others.toArray(new CompletableFuture<?>[0])).join();
+            parallelDeliveries.incrementAndGet();
+        }
+
+        if (measure) {
+            deliveries.incrementAndGet();
+            long first = firstSentAt.get();
+            if (first != 0) {
+                firstDelivery.add(first - start);
+                lastDelivery.add(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private CompletableFuture<Void> submitPartition(List<ClientHandler> partition, Predicate<ClientHandler> send,
+            AtomicLong firstSentAt) {
+        try {
+            return CompletableFuture.runAsync(() -> sendPartition(partition, send, firstSentAt), workers);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, send on the caller's thread
+            sendPartition(partition, send, firstSentAt);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private static void sendPartition(List<ClientHandler> partition, Predicate<ClientHandler> send,
+            AtomicLong firstSentAt) {
+        for (ClientHandler recipient : partition) {
+            if (send.test(recipient) && firstSentAt != null && firstSentAt.get() == 0) {
+                firstSentAt.compareAndSet(0, System.nanoTime());
+            }
+        }
+    }
+
+    public void shutdown() {
+        if (workers != null) {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * @return One-line summary of the deliveries and their latency
+     * percentiles since the last call
+     */
+    public String getMetricsSummary() {
+        return "Broadcast fan-out: threshold=" + threshold
+                + " parallelism=" + parallelism
+                + " deliveries=" + deliveries.get()
+                + " parallel=" + parallelDeliveries.get()
+                + " firstDeliveryUs " + firstDelivery.takePercentiles()
+                + " lastDeliveryUs " + lastDelivery.takePercentiles();
+    }
+
+    /**
+     * Latencies of the most recent deliveries since the last report.
+     */
+    private static final class LatencySamples {
+
+        private final long[] samples = new long[MAX_SAMPLES];
+        private int count = 0;  // Samples recorded, may exceed the buffer
+        private long max = 0;
+
+        synchronized void add(long nanos) {
+            samples[count % MAX_SAMPLES] = nanos;
+            count++;
+            max = Math.max(max, nanos);
+        }
+
+        /**
+         * @return "p50=.. p90=.. p99=.. max=.." in microseconds, and
+         * starts over
+         */
+        synchronized String takePercentiles() {
+            int size = Math.min(count, MAX_SAMPLES);
+            long[] sorted = Arrays.copyOf(samples, size);
+            long maxNanos = max;
+            count = 0;
+            max = 0;
+
+            Arrays.sort(sorted);
+            return "p50=" + percentile(sorted, 50) + " p90=" + percentile(sorted, 90)
+                    + " p99=" + percentile(sorted, 99) + " max=" + maxNanos / 1000;
+        }
+
+        private static long percentile(long[] sorted, int percent) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+            return sorted[Math.max(0, index)] / 1000;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package chat.server;
 
+import chat.protocol.LineCompression;
 import chat.server.auth.AuthenticationService;
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -7,8 +8,17 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ClientHandler {
 
@@ -16,14 +26,68 @@ public class ClientHandler {
     private final AuthenticationService authService;
     private final Server server;
     private BufferedReader in;
+    // Output goes through two priority lanes (see OutboundLanes): "out" for
+    // control traffic and command replies, "bulkOut" for room traffic and the
+    // lines that must stay ordered with it (joins and leaves, redirects, bot
+    // errors, RECONNECT). A client with more than
+    // -Dchat.outbound.maxBulkLines=<lines> of room traffic queued is
+    // disconnected, so senders never wait for it.
+    private static final int MAX_BULK_LINES = Integer.getInteger("chat.outbound.maxBulkLines", 10000);
+    private static final long CLOSE_FLUSH_TIMEOUT_MS = 2000;
+    private OutboundLanes outbound;
     private PrintWriter out;
+    private PrintWriter bulkOut;
     private String username;
-    private Room currentRoom;
+    private Room currentRoom;  // Active room: plain messages and /prompt go here
+    // Every room this connection is subscribed to, in subscription order.
+    // Only modified by the handler thread; the limit can be tuned with
+    // -Dchat.maxSubscriptions=<count>.
+    private static final int MAX_SUBSCRIPTIONS = Integer.getInteger("chat.maxSubscriptions", 16);
+    private final Map<String, Room> subscriptions = new LinkedHashMap<>();
+    // Rooms moved to another cluster node, dropped from the subscriptions by
+    // the handler thread before it processes the next line
+    private final Set<String> movedRooms = ConcurrentHashMap.newKeySet();
+    private volatile boolean multiRoom = false;
     private boolean isAuthenticated = false;
+    // Rate limit rejections are answered with at most one notice per interval,
+    // so a flooding client does not get a flood back
+    private static final long LIMIT_NOTICE_INTERVAL_MS = 1000;
+    private long lastLimitNoticeMs = 0;
+    // Set when the server drains: the user keeps their rooms for the next process
+    private volatile boolean draining = false;
     private static final int MAX_LOGIN_ATTEMPTS = 3;
     private static final int RECENT_MESSAGES_COUNT = 10;
     private String sessionToken;
 
+    // Resume protocol: clients that send "CAPS:SEQ" receive room messages as
+    // "MSG:<seq> <room> <text>" and may send "RESUME:<seq> <room>" before
+    // their session token to get back only the messages they missed.
+    private static final String CAPS_PREFIX = "CAPS:";
+    private static final String RESUME_PREFIX = "RESUME:";
+    private static final String MSG_PREFIX = "MSG:";
+    // Sent to sequenced clients whose position in a room is beyond the
+    // room's history, which was reset: "HISTORY_RESET:<room>"
+    private static final String HISTORY_RESET_PREFIX = "HISTORY_RESET:";
+    // Presence updates (see RoomPresence) reach sequenced clients as
+    // "PRESENCE:<room> <text>"
+    private static final String PRESENCE_PREFIX = "PRESENCE:";
+    private volatile boolean sequencedMessages = false;
+    private final Map<String, Long> resumePositions = new HashMap<>();
+
+    // Compression (see chat.protocol.LineCompression), for clients that send
+    // "CAPS:DEFLATE". History replays of at least chat.compress.minBlockBytes
+    // go out as one compressed block. Live traffic of the rooms listed in
+    // chat.compress.streamRooms ("*" for all) goes through a compressed
+    // stream, except lines shorter than chat.compress.minStreamLineBytes,
+    // which would grow.
+    private static final int MIN_BLOCK_BYTES = Integer.getInteger("chat.compress.minBlockBytes", 256);
+    private static final int MIN_STREAM_LINE_BYTES = Integer.getInteger("chat.compress.minStreamLineBytes", 48);
+    private static final Set<String> STREAM_ROOMS = new HashSet<>(
+            Arrays.asList(System.getProperty("chat.compress.streamRooms", "").split("\\s*,\\s*")));
+    private volatile boolean compression = false;
+    private final Lock streamLock = new ReentrantLock();
+    private LineCompression.Encoder streamEncoder; // Guarded by streamLock
+
     public ClientHandler(Socket clientSocket, AuthenticationService authService, Server server) {
         this.clientSocket = clientSocket;
         this.authService = authService;
@@ -34,7 +98,10 @@ public class ClientHandler {
         try {
             // Set up input and output streams
             in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
+            outbound = new OutboundLanes(clientSocket.getOutputStream(), MAX_BULK_LINES, this::closeSocket);
+            outbound.start("client-out-" + clientSocket.getRemoteSocketAddress());
+            out = new PrintWriter(outbound.writer(OutboundLanes.Lane.CONTROL), true);
+            bulkOut = new PrintWriter(outbound.writer(OutboundLanes.Lane.BULK), true);
 
             // Send welcome message and authentication prompt
             out.println("Welcome to the chat server! Please login using: /login <username> <password>");
@@ -47,6 +114,9 @@ public class ClientHandler {
             // Process client commands
             processCommands();
         } catch (SocketException se) {
+            if (draining) {
+                return; // Closed by drain(), cleaned up below
+            }
             System.err.println("Client connection lost: " + (username != null ? username : "unknown") + " - " + se.getMessage());
         } catch (IOException e) {
             System.err.println("Error handling client connection: " + e.getMessage());
@@ -56,7 +126,15 @@ public class ClientHandler {
         } finally {
             // If user was authenticated, log them out and leave any room they were in
             if (isAuthenticated && username != null) {
-                leaveCurrentRoom();
+                server.unregisterConnection(username, this);
+                if (draining) {
+                    // Coming back to the next process: leave without telling the rooms
+                    for (Room room : subscriptions.values()) {
+                        room.removeMember(this);
+                    }
+                } else {
+                    leaveAllRooms();
+                }
                 authService.logout(username);
                 System.out.println("User logged out: " + username);
             }
@@ -71,6 +149,16 @@ public class ClientHandler {
 
         try {
             while (attempts < MAX_LOGIN_ATTEMPTS && (line = in.readLine()) != null) {
+                // Protocol negotiation lines, sent before authenticating
+                if (line.startsWith(CAPS_PREFIX)) {
+                    parseCapabilities(line.substring(CAPS_PREFIX.length()));
+                    continue;
+                }
+                if (line.startsWith(RESUME_PREFIX)) {
+                    parseResumePosition(line.substring(RESUME_PREFIX.length()));
+                    continue;
+                }
+
                 // First check if client sent a session token
                 if (line.startsWith("SESSION_TOKEN:")) {
                     String[] parts = line.split(":", 2);
@@ -85,36 +173,14 @@ public class ClientHandler {
                             username = existingUsername;
                             sessionToken = pendingSessionToken;
                             isAuthenticated = true;
-                            // Restore user's room if they were in one
-                            Room restoredRoom = server.getRoomForUser(username);
-
-                            if (restoredRoom != null) {
-                                System.out.println("Restoring room for user: " + username + " - Room: " + restoredRoom.getName());
-                                // Add client to the room
-                                restoredRoom.addMember(this);
-                                currentRoom = restoredRoom;
-                                
-                                out.println("AUTH_OK: Welcome back, " + username + "! You have been reconnected to room: " + restoredRoom.getName());
-                                
-                                // Send recent message history
-                                List<String> recentMessages = restoredRoom.getRecentMessages(RECENT_MESSAGES_COUNT);
-                                if (!recentMessages.isEmpty()) {
-                                    out.println("Recent messages:");
-                                    for (String message : recentMessages) {
-                                        out.println(message);
-                                    }
-                                }
-                                
-                                // Broadcast join message to other room members
-                                restoredRoom.broadcast("[" + username + " has reconnected to the room]", this);
-                            } else {
-                                out.println("AUTH_OK: Welcome back, " + username + "!");
-                            }
+                            server.registerConnection(username, this);
+                            // Restore the user's subscriptions if they had any
+                            restoreSubscriptions();
                             
                             System.out.println("User authenticated via session token: " + username);
                             return true;
                         } else {
-                            out.println("Your session has expired. Please login with username and password.");
+                            out.println("AUTH_FAIL: Your session has expired. Please login with username and password.");
                         }
                         continue;
                     }
@@ -142,9 +208,10 @@ public class ClientHandler {
                     }
 
                     isAuthenticated = true;
+                    server.registerConnection(username, this);
 
                     // Create new session token
-                    sessionToken = server.getSessionManager().createSession(username);
+                    sessionToken = server.createSession(username);
                     out.println("AUTH_OK: Welcome, " + username + "! Your session token: " + sessionToken);
 
                     System.out.println("User authenticated with credentials: " + username);
@@ -177,6 +244,13 @@ public class ClientHandler {
         try {
             while ((line = in.readLine()) != null) {
                 try {
+                    dropMovedRooms();
+                    // A user over the rate can still leave
+                    if (!server.getAdmissionControl().allowUser(username)
+                            && !line.startsWith("/exit") && !line.startsWith("/logout")) {
+                        notifyLimited("You are sending too fast. \"" + abbreviate(line) + "\" was dropped.");
+                        continue;
+                    }
                     if (line.startsWith("/")) {
                         // Handle commands
                         String[] parts = line.split("\\s+", 3); // Split into at most 3 parts for AI room
@@ -197,14 +271,49 @@ public class ClientHandler {
                                 break;
                             case "/join":
                                 if (parts.length < 2) {
-                                    out.println("ERROR: Usage: /join <roomname>");
+                                    out.println("ERROR: Usage: /join <roomname> [since_seq]");
+                                } else {
+                                    joinRoom(parts[1], parseSinceSeq(parts));
+                                }
+                                break;
+                            case "/subscribe":
+                                if (parts.length < 2) {
+                                    out.println("ERROR: Usage: /subscribe <roomname> [since_seq]");
                                 } else {
-                                    joinRoom(parts[1]);
+                                    subscribe(parts[1], parseSinceSeq(parts));
                                 }
                                 break;
+                            case "/unsubscribe":
+                                if (parts.length < 2) {
+                                    out.println("ERROR: Usage: /unsubscribe <roomname>");
+                                } else {
+                                    unsubscribe(parts[1]);
+                                }
+                                break;
+                            case "/msg":
+                                if (parts.length < 3) {
+                                    out.println("ERROR: Usage: /msg <username> <message>");
+                                } else {
+                                    sendDirectMessage(parts[1], parts[2]);
+                                }
+                                break;
+                            case "/typing":
+                                sendTyping(parts.length > 1 ? parts[1] : null);
+                                break;
+                            case "/send":
+                                if (parts.length < 3) {
+                                    out.println("ERROR: Usage: /send <roomname> <message>");
+                                } else {
+                                    sendToRoom(parts[1], parts[2]);
+                                }
+                                break;
+                            case "/prompt":
+                                changeAiPrompt(line.substring(command.length()).trim());
+                                break;
                             case "/leave":
-                                leaveCurrentRoom();
-                                server.setRoomForUser(username, null);
+                                if (currentRoom != null) {
+                                    unsubscribe(currentRoom.getName());
+                                }
                                 break;
                             case "/logout":
                                 handleLogout();
@@ -231,7 +340,9 @@ public class ClientHandler {
                 }
             }
         } catch (IOException e) {
-            System.err.println("Connection lost with client " + username + ": " + e.getMessage());
+            if (!draining) {
+                System.err.println("Connection lost with client " + username + ": " + e.getMessage());
+            }
             throw e;
         }
     }
@@ -297,6 +408,21 @@ public class ClientHandler {
         }
     }
 
+    private void changeAiPrompt(String aiPrompt) {
+        if (currentRoom == null || !currentRoom.isAiRoom()) {
+            out.println("ERROR: You must be in an AI room to change its prompt");
+            return;
+        }
+
+        if (aiPrompt.isEmpty()) {
+            out.println("ERROR: Usage: /prompt <ai_prompt>");
+            return;
+        }
+
+        currentRoom.setAiPrompt(aiPrompt);
+        out.println("AI prompt of room '" + currentRoom.getName() + "' changed to: " + aiPrompt);
+    }
+
     private void createRoom(String input) {
         String[] parts = input.split("\\s+", 2);
         String roomName = parts[0].trim();
@@ -314,14 +440,75 @@ public class ClientHandler {
         }
     }
 
-    private void joinRoom(String roomName) {
-        if (currentRoom != null && currentRoom.getName().equals(roomName)) {
+    /**
+     * Reads the optional "since_seq" argument of /join and /subscribe: the
+     * newest message the client already has (e.g. in its local cache).
+     *
+     * @return The sequence number, or -1 if absent or malformed
+     */
+    private static long parseSinceSeq(String[] parts) {
+        if (parts.length < 3) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(parts[2].trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Switches to a single room: leaves every subscribed room, then
+     * subscribes to the given one.
+     */
+    private void joinRoom(String roomName, long sinceSeq) {
+        String ownerAddress = server.getRedirectAddress(roomName);
+        if (ownerAddress != null) {
+            sendRedirect(roomName, ownerAddress);
+            return;
+        }
+
+        if (subscriptions.size() == 1 && subscriptions.containsKey(roomName)) {
             out.println("You are already in room '" + roomName + "'");
             return;
         }
 
-        // Leave current room if in one
-        leaveCurrentRoom();
+        // Leave current rooms if in any
+        for (Room room : new ArrayList<>(subscriptions.values())) {
+            if (!room.getName().equals(roomName)) {
+                leaveRoom(room);
+                server.removeRoomForUser(username, room);
+            }
+        }
+
+        subscribe(roomName, sinceSeq);
+    }
+
+    /**
+     * Subscribes to a room without leaving the others, and makes it the
+     * active room. Subscribing to a room again only makes it active.
+     *
+     * @param sinceSeq Newest message the client already has, or -1
+     */
+    private void subscribe(String roomName, long sinceSeq) {
+        Room subscribed = subscriptions.get(roomName);
+        if (subscribed != null) {
+            currentRoom = subscribed;
+            server.addRoomForUser(username, subscribed);
+            out.println("Active room: " + roomName);
+            return;
+        }
+
+        String ownerAddress = server.getRedirectAddress(roomName);
+        if (ownerAddress != null) {
+            sendRedirect(roomName, ownerAddress);
+            return;
+        }
+
+        if (subscriptions.size() >= MAX_SUBSCRIPTIONS) {
+            out.println("ERROR: You can be in at most " + MAX_SUBSCRIPTIONS + " rooms. Use /unsubscribe <roomname> first");
+            return;
+        }
 
         Room room = server.getRoom(roomName);
 
@@ -331,11 +518,11 @@ public class ClientHandler {
         }
 
         // Add client to the room
-        room.addMember(this);
-        currentRoom = room;
+        boolean wasPresent = room.hasMember(username);
+        addSubscription(room);
         
-        // Track the user's room for reconnection
-        server.setRoomForUser(username, room);
+        // Track the user's rooms for reconnection
+        server.addRoomForUser(username, room);
 
         // Confirm to client
         StringBuilder joinMessage = new StringBuilder();
@@ -345,34 +532,180 @@ public class ClientHandler {
             joinMessage.append(" [AI Room with prompt: ").append(room.getAiPrompt()).append("]");
         }
 
-        out.println(joinMessage.toString());
+        // With the room traffic, so it comes after the leave of an earlier subscription
+        sendBulk(joinMessage.toString());
+
+        // Send only what the client does not have yet, or the recent history.
+        // A position beyond the room's history is stale (e.g. from before a
+        // server restart), so the client gets the recent history instead.
+        if (sinceSeq >= 0 && sinceSeq <= room.getLastMessageSeq()) {
+            room.sendHistory(this, sinceSeq, Integer.MAX_VALUE, "New messages:");
+        } else {
+            if (sinceSeq > 0) {
+                sendHistoryReset(roomName);
+            }
+            room.sendHistory(this, 0, RECENT_MESSAGES_COUNT, "Recent messages:");
+        }
+
+        // Tell the other room members, on the presence channel
+        room.presenceChanged(username, wasPresent);
+    }
+
+    private void unsubscribe(String roomName) {
+        Room room = subscriptions.get(roomName);
+        if (room == null) {
+            out.println("ERROR: You are not in room '" + roomName + "'");
+            return;
+        }
+
+        leaveRoom(room);
+        server.removeRoomForUser(username, room);
+    }
+
+    /**
+     * Rejoins the rooms recorded for the user after a session token login.
+     * The most recently subscribed room becomes the active room again.
+     */
+    private void restoreSubscriptions() {
+        // Rooms that moved to another node while the client was away
+        List<Room> rooms = new ArrayList<>();
+        Room movedAway = null;
+        for (Room room : server.getRoomsForUser(username)) {
+            if (server.getRedirectAddress(room.getName()) == null) {
+                rooms.add(room);
+            } else {
+                server.removeRoomForUser(username, room);
+                movedAway = room;
+            }
+        }
+
+        if (rooms.isEmpty()) {
+            out.println("AUTH_OK: Welcome back, " + username + "!");
+            if (movedAway != null) {
+                String ownerAddress = server.getRedirectAddress(movedAway.getName());
+                if (ownerAddress != null) {
+                    sendRedirect(movedAway.getName(), ownerAddress);
+                }
+            }
+            return;
+        }
+
+        List<String> roomNames = new ArrayList<>();
+        Set<String> presentBefore = new HashSet<>();  // Rooms another connection of the user is in
+        for (Room room : rooms) {
+            if (room.hasMember(username)) {
+                presentBefore.add(room.getName());
+            }
+            addSubscription(room);
+            roomNames.add(room.getName());
+        }
+        System.out.println("Restoring rooms for user: " + username + " - Rooms: " + roomNames);
+
+        if (rooms.size() == 1) {
+            out.println("AUTH_OK: Welcome back, " + username + "! You have been reconnected to room: " + roomNames.get(0));
+        } else {
+            out.println("AUTH_OK: Welcome back, " + username + "! You have been reconnected to rooms: " + String.join(", ", roomNames));
+        }
+
+        for (Room room : rooms) {
+            // Send what the client missed, or the recent history
+            Long lastSeen = resumePositions.get(room.getName());
+            if (lastSeen != null && lastSeen <= room.getLastMessageSeq()) {
+                room.sendHistory(this, lastSeen, Integer.MAX_VALUE, "Missed messages in " + room.getName() + ":");
+            } else {
+                if (lastSeen != null) {
+                    sendHistoryReset(room.getName());
+                }
+                room.sendHistory(this, 0, RECENT_MESSAGES_COUNT, "Recent messages in " + room.getName() + ":");
+            }
+
+            // Tell the other room members, on the presence channel
+            room.presenceChanged(username, presentBefore.contains(room.getName()));
+        }
+    }
+
+    /**
+     * Redirects the client to the cluster node that owns a room. Sequenced
+     * clients get "REDIRECT &lt;host&gt; &lt;port&gt; &lt;room&gt;" and follow
+     * it; others are told where to connect.
+     *
+     * @param ownerAddress "host:port" of the owning node
+     */
+    private void sendRedirect(String roomName, String ownerAddress) {
+        int colon = ownerAddress.lastIndexOf(':');
+        if (sequencedMessages && colon > 0) {
+            sendBulk("REDIRECT " + ownerAddress.substring(0, colon) + " " + ownerAddress.substring(colon + 1)
+                    + " " + roomName);
+        } else {
+            sendBulk("Room '" + roomName + "' is hosted on " + ownerAddress + ". Connect there to join it.");
+        }
+    }
+
+    /**
+     * Called when a room this client is in moved to another cluster node:
+     * leaves the room and redirects the client to the new owner.
+     */
+    public void moveToNode(Room room, String ownerAddress) {
+        room.removeMember(this);
+        server.removeRoomForUser(username, room);
+        movedRooms.add(room.getName());
+        sendRedirect(room.getName(), ownerAddress);
+    }
 
-        // Send recent message history
-        List<String> recentMessages = room.getRecentMessages(RECENT_MESSAGES_COUNT);
-        if (!recentMessages.isEmpty()) {
-            out.println("Recent messages:");
-            for (String message : recentMessages) {
-                out.println(message);
+    private void dropMovedRooms() {
+        for (String roomName : movedRooms) {
+            movedRooms.remove(roomName);
+            Room room = subscriptions.remove(roomName);
+            if (room != null && currentRoom == room) {
+                currentRoom = null;
+                for (Room remaining : subscriptions.values()) {
+                    currentRoom = remaining;
+                }
             }
         }
+        multiRoom = subscriptions.size() > 1;
+    }
 
-        // Broadcast join message to other room members
-        room.broadcast("[" + username + " has joined the room]", this);
+    private void addSubscription(Room room) {
+        room.addMember(this);
+        subscriptions.put(room.getName(), room);
+        currentRoom = room;
+        multiRoom = subscriptions.size() > 1;
     }
 
-    private void leaveCurrentRoom() {
-        if (currentRoom != null) {
-            // Broadcast leave message
-            currentRoom.broadcast("[" + username + " has left the room]", this);
+    /**
+     * Leaves one subscribed room. If it was the active room, the most recently
+     * subscribed remaining room becomes active.
+     */
+    private void leaveRoom(Room room) {
+        // Remove from room
+        boolean wasPresent = room.hasMember(username);
+        room.removeMember(this);
 
-            // Remove from room
-            currentRoom.removeMember(this);
+        // Tell the other room members, on the presence channel
+        room.presenceChanged(username, wasPresent);
+        subscriptions.remove(room.getName());
+        multiRoom = subscriptions.size() > 1;
 
-            // Inform client
-            out.println("You left room: " + currentRoom.getName());
+        // Inform client
+        // After the room's queued messages
+        sendBulk("You left room: " + room.getName());
 
-            // Clear current room reference
+        if (currentRoom == room) {
             currentRoom = null;
+            for (Room remaining : subscriptions.values()) {
+                currentRoom = remaining;
+            }
+        }
+    }
+
+    /**
+     * Leaves every subscribed room, keeping the server's record of them so a
+     * resumed session can rejoin.
+     */
+    private void leaveAllRooms() {
+        for (Room room : new ArrayList<>(subscriptions.values())) {
+            leaveRoom(room);
         }
     }
 
@@ -382,14 +715,81 @@ public class ClientHandler {
             return;
         }
 
+        postMessage(currentRoom, message);
+    }
+
+    private void sendToRoom(String roomName, String message) {
+        Room room = subscriptions.get(roomName);
+        if (room == null) {
+            out.println("ERROR: You are not in room '" + roomName + "'. Subscribe first with /subscribe " + roomName);
+            return;
+        }
+
+        postMessage(room, message);
+    }
+
+    private void postMessage(Room room, String message) {
+        if (!server.getAdmissionControl().allowRoom(room.getName())) {
+            notifyLimited("Room " + room.getName() + " is too busy. Your message was dropped.");
+            return;
+        }
+
+        room.stoppedTyping(username);
+
         // Format the message with username
         String formattedMessage = username + ": " + message;
 
-        // Send to self to confirm
-        out.println(formattedMessage);
+        // Broadcast to room members, then send to self to confirm
+        long seq = room.broadcast(formattedMessage, this);
+        sendRoomMessage(room.getName(), seq, formattedMessage);
+    }
 
-        // Broadcast to room members
-        currentRoom.broadcast(formattedMessage, this);
+    /**
+     * Sends a private message to one user, outside any room and its history.
+     */
+    private void sendDirectMessage(String recipient, String message) {
+        server.sendDirectMessage(this, recipient, message);
+    }
+
+    /**
+     * Tells the sender of a direct message whether it was delivered.
+     */
+    public void confirmDirectMessage(String recipient, String message, boolean delivered) {
+        if (delivered) {
+            sendMessage("[DM to " + recipient + "] " + message);
+        } else {
+            sendMessage("ERROR: " + recipient + " is not online.");
+        }
+    }
+
+    /**
+     * Shows the other members of a room that the user is typing.
+     *
+     * @param roomName One of the user's rooms, or null for the active room
+     */
+    private void sendTyping(String roomName) {
+        Room room = roomName != null ? subscriptions.get(roomName) : currentRoom;
+        if (room == null) {
+            out.println("ERROR: You are not in " + (roomName != null ? "room '" + roomName + "'" : "any room"));
+            return;
+        }
+        room.typing(username);
+    }
+
+    /**
+     * Tells the client that a line was dropped by a rate limit, unless it
+     * was already told in the last interval.
+     */
+    private void notifyLimited(String notice) {
+        long now = System.currentTimeMillis();
+        if (now - lastLimitNoticeMs >= LIMIT_NOTICE_INTERVAL_MS) {
+            lastLimitNoticeMs = now;
+            out.println("ERROR: " + notice);
+        }
+    }
+
+    private static String abbreviate(String line) {
+        return line.length() <= 40 ? line : line.substring(0, 37) + "...";
     }
 
     private void sendHelp() {
@@ -397,27 +797,256 @@ public class ClientHandler {
         out.println("/list - List available rooms");
         out.println("/create <roomname> - Create a new regular room");
         out.println("/create <roomname> <ai_prompt> - Create a new AI room with specified prompt");
-        out.println("/join <roomname> - Join an existing room");
-        out.println("/leave - Leave current room");
+        out.println("/join <roomname> - Join a room, leaving the rooms you are in");
+        out.println("/subscribe <roomname> - Also join a room, or make it the active room");
+        out.println("/unsubscribe <roomname> - Leave one of your rooms");
+        out.println("/send <roomname> <message> - Send a message to one of your rooms");
+        out.println("/msg <username> <message> - Send a private message to a user");
+        out.println("/typing [roomname] - Show the other members of a room that you are typing");
+        out.println("/prompt <ai_prompt> - Change the prompt of the current AI room");
+        out.println("/leave - Leave the active room");
         out.println("/logout - Log out current user");
         out.println("/exit - Disconnect from the server");
         out.println("/help - Show this help message");
         out.println("");
-        out.println("To send a message, simply type and press Enter when in a room");
+        out.println("To send a message to the active room, simply type and press Enter");
         out.println("In AI rooms, the AI will respond to your messages based on the room's prompt");
     }
 
+    /**
+     * Sends a control line, ahead of any queued room traffic.
+     */
     public void sendMessage(String message) {
         if (out != null) {
             out.println(message);
         }
     }
 
+    /**
+     * Sends a line of room traffic, after the room traffic already queued.
+     */
+    private void sendBulk(String line) {
+        if (bulkOut != null) {
+            bulkOut.println(line);
+        }
+    }
+
+    /**
+     * Sends a notice about a room's traffic, such as a bot error, after the
+     * room traffic already queued.
+     */
+    public void sendRoomNotice(String notice) {
+        sendBulk(notice);
+    }
+
+    /**
+     * Delivers a direct message from another user, with the room traffic.
+     */
+    public void deliverDirectMessage(String from, String text) {
+        sendBulk("[DM from " + from + "] " + text);
+    }
+
+    /**
+     * Sends a room message, tagged with its sequence number if the client
+     * negotiated sequenced messages.
+     */
+    public void sendRoomMessage(String roomName, long seq, String message) {
+        sendRoomLine(roomName, formatRoomMessage(roomName, seq, message));
+    }
+
+    /**
+     * Sends a presence update of a room, tagged with its room for sequenced
+     * clients. Never part of the history, so it has no sequence number.
+     */
+    public void sendPresence(String roomName, String text) {
+        if (sequencedMessages) {
+            sendRoomLine(roomName, PRESENCE_PREFIX + roomName + " " + text);
+        } else if (multiRoom) {
+            sendRoomLine(roomName, "[" + roomName + "] " + text);
+        } else {
+            sendRoomLine(roomName, text);
+        }
+    }
+
+    /**
+     * Tells a sequenced client that the room's numbering started over, so
+     * the messages it has of the room are stale.
+     */
+    private void sendHistoryReset(String roomName) {
+        if (sequencedMessages) {
+            sendBulk(HISTORY_RESET_PREFIX + roomName);
+        }
+    }
+
+    /**
+     * Sends a batch of room messages, such as a history replay, after a
+     * header line. Large batches go out as a single compressed block if the
+     * client supports it.
+     *
+     * @param firstSeq Sequence number of the first message
+     */
+    public void sendRoomMessages(String roomName, String header, long firstSeq, List<String> messages) {
+        List<String> lines = new ArrayList<>(messages.size() + 1);
+        lines.add(header);
+        for (int i = 0; i < messages.size(); i++) {
+            lines.add(formatRoomMessage(roomName, firstSeq + i, messages.get(i)));
+        }
+
+        String text = String.join("\n", lines);
+        if (!compression || text.length() < MIN_BLOCK_BYTES) {
+            for (String line : lines) {
+                sendBulk(line);
+            }
+            return;
+        }
+
+        long start = System.nanoTime();
+        String frame = LineCompression.encodeBlock(text);
+        server.getCompressionMetrics().record(roomName, text.length(), frame.length(), System.nanoTime() - start);
+        sendBulk(frame);
+    }
+
+    private String formatRoomMessage(String roomName, long seq, String message) {
+        if (sequencedMessages) {
+            return MSG_PREFIX + seq + " " + roomName + " " + message;
+        } else if (multiRoom) {
+            return "[" + roomName + "] " + message;
+        } else {
+            return message;
+        }
+    }
+
+    /**
+     * Sends a chunk of a streamed bot response (already escaped), tagged
+     * with its room for sequenced clients.
+     */
+    public void sendBotPartial(String roomName, String escapedChunk) {
+        if (sequencedMessages) {
+            sendRoomLine(roomName, Room.BOT_PARTIAL_PREFIX + roomName + " " + escapedChunk);
+        } else {
+            sendBulk(Room.BOT_PARTIAL_PREFIX + escapedChunk);
+        }
+    }
+
+    /**
+     * Ends a streamed bot response; sequenced clients also learn the
+     * sequence number of the stored message (0 if nothing was stored).
+     */
+    public void sendBotDone(String roomName, long seq) {
+        if (sequencedMessages) {
+            sendRoomLine(roomName, Room.BOT_DONE + ":" + seq + " " + roomName);
+        } else {
+            sendBulk(Room.BOT_DONE);
+        }
+    }
+
+    /**
+     * Sends a line of live room traffic, through the compressed stream if
+     * the client supports it and the room is configured for it.
+     */
+    private void sendRoomLine(String roomName, String line) {
+        if (!compression || line.length() < MIN_STREAM_LINE_BYTES
+                || !(STREAM_ROOMS.contains(roomName) || STREAM_ROOMS.contains("*"))) {
+            sendBulk(line);
+            return;
+        }
+
+        // Frames must be written in the order they were encoded
+        streamLock.lock();
+        try {
+            if (bulkOut == null) {
+                return;
+            }
+            if (streamEncoder == null) {
+                streamEncoder = new LineCompression.Encoder();
+            }
+            long start = System.nanoTime();
+            String frame = streamEncoder.encode(line);
+            server.getCompressionMetrics().record(roomName, line.length(), frame.length(), System.nanoTime() - start);
+            bulkOut.println(frame);
+        } finally {
+            streamLock.unlock();
+        }
+    }
+
+    /**
+     * Applies a "CAPS:<capability> ..." line; unknown capabilities are ignored.
+     */
+    private void parseCapabilities(String capabilities) {
+        for (String capability : capabilities.trim().split("\\s+")) {
+            if (capability.equals("SEQ")) {
+                sequencedMessages = true;
+            } else if (capability.equals(LineCompression.CAPABILITY)) {
+                compression = true;
+            }
+        }
+    }
+
+    /**
+     * Records a "RESUME:<seq> <room>" position; malformed lines are ignored.
+     */
+    private void parseResumePosition(String position) {
+        String[] parts = position.trim().split("\\s+", 2);
+        if (parts.length < 2) {
+            return;
+        }
+        try {
+            resumePositions.put(parts[1], Long.parseLong(parts[0]));
+        } catch (NumberFormatException e) {
+            // Ignore, the client then gets the recent history instead
+        }
+    }
+
     public String getUsername() {
         return username;
     }
 
+    /**
+     * Tells the client to reconnect after a delay, because the server is
+     * being replaced. The user's rooms stay recorded and no leave message is
+     * sent, so the client resumes in the same rooms on the next process.
+     * {@link #finishDrain} closes the connection.
+     */
+    public void drain(long delayMs) {
+        draining = true;
+        sendBulk("RECONNECT " + delayMs);
+        if (outbound != null) {
+            outbound.close();
+        }
+    }
+
+    /**
+     * Closes the connection once the queued output, ending with RECONNECT,
+     * was sent or the deadline passed.
+     *
+     * @param deadlineNanos {@link System#nanoTime()} after which it stops waiting
+     */
+    public void finishDrain(long deadlineNanos) {
+        if (outbound != null) {
+            outbound.awaitSent(deadlineNanos);
+        }
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
     private void closeResources() {
+        streamLock.lock();
+        try {
+            if (streamEncoder != null) {
+                streamEncoder.close();
+                streamEncoder = null;
+            }
+        } finally {
+            streamLock.unlock();
+        }
+
         try {
             if (in != null) {
                 in.close();
@@ -425,6 +1054,13 @@ public class ClientHandler {
             if (out != null) {
                 out.close();
             }
+            if (bulkOut != null) {
+                bulkOut.close();
+            }
+            if (outbound != null) {
+                // Send what is still queued, such as a goodbye
+                outbound.close(CLOSE_FLUSH_TIMEOUT_MS);
+            }
             if (clientSocket != null && !clientSocket.isClosed()) {
                 clientSocket.close();
             }
@@ -443,11 +1079,11 @@ public class ClientHandler {
 
     private void handleLogout() {
         if (isAuthenticated && username != null) {
-            leaveCurrentRoom();
+            leaveAllRooms();
             
             // Invalidate the session token
             if (sessionToken != null) {
-                server.getSessionManager().invalidateSession(sessionToken);
+                server.invalidateSession(sessionToken);
                 sessionToken = null;
             }
             
@@ -455,10 +1091,11 @@ public class ClientHandler {
             authService.logout(username);
             
             // Clear room association
-            server.setRoomForUser(username, null);
+            server.clearRoomsForUser(username);
             
             // Reset client state
             isAuthenticated = false;
+            server.unregisterConnection(username, this);
             
             System.out.println("User logged out: " + username);
             out.println("You have been logged out. Please login again with /login <username> <password>");
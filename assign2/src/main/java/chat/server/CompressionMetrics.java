@@ -0,0 +1,67 @@
+package chat.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-room compression counters, used to decide which rooms benefit from
+ * streaming compression: how much each room's traffic shrinks, and how much
+ * time the server spends compressing it.
+ */
+public class CompressionMetrics {
+
+    private static class RoomCounters {
+        final LongAdder frames = new LongAdder();
+        final LongAdder rawBytes = new LongAdder();
+        final LongAdder sentBytes = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+    }
+
+    private final Map<String, RoomCounters> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * Records one compressed frame.
+     *
+     * @param room Room whose traffic was compressed
+     * @param rawBytes Size of the uncompressed lines
+     * @param sentBytes Size of the frame actually sent
+     * @param nanos Time spent compressing
+     */
+    public void record(String room, long rawBytes, long sentBytes, long nanos) {
+        RoomCounters counters = rooms.computeIfAbsent(room, r -> new RoomCounters());
+        counters.frames.increment();
+        counters.rawBytes.add(rawBytes);
+        counters.sentBytes.add(sentBytes);
+        counters.nanos.add(nanos);
+    }
+
+    /**
+     * @return One line per room with its frames, byte counts, ratio (sent
+     * bytes as a percentage of raw bytes) and compression time
+     */
+    public String getMetricsSummary() {
+        if (rooms.isEmpty()) {
+            return "Compression: no compressed traffic";
+        }
+
+        StringBuilder summary = new StringBuilder("Compression:");
+        for (Map.Entry<String, RoomCounters> entry : new TreeMap<>(rooms).entrySet()) {
+            RoomCounters counters = entry.getValue();
+            long raw = counters.rawBytes.sum();
+            long sent = counters.sentBytes.sum();
+            long frames = counters.frames.sum();
+            long micros = counters.nanos.sum() / 1000;
+            summary.append(System.lineSeparator())
+                    .append("  ").append(entry.getKey())
+                    .append(": frames=").append(frames)
+                    .append(" rawBytes=").append(raw)
+                    .append(" sentBytes=").append(sent)
+                    .append(" ratio=").append(raw > 0 ? sent * 100 / raw : 0).append('%')
+                    .append(" compressUs=").append(micros)
+                    .append(" usPerKB=").append(raw > 0 ? micros * 1024 / raw : 0);
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,218 @@
+package chat.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Output path of one client connection, with two priority lanes drained by
+ * a writer thread. Control traffic (authentication, errors, command
+ * replies) always goes out before bulk room traffic that is still queued,
+ * so a user's own replies do not wait behind a chat backlog.
+ *
+ * Each queued item is one or more whole lines, and each lane keeps its own
+ * order, so ordered bulk traffic (history replays, streamed bot replies,
+ * compressed stream frames) reaches the client as it was queued. Lines
+ * that must stay ordered with a room's traffic are queued on the bulk lane
+ * too. The writer flushes after each control item, and after bulk items
+ * once both lanes are empty.
+ *
+ * The bulk lane is bounded. Senders never wait for a slow client, as they
+ * include shared threads that serve every room. A client whose bulk lane
+ * overflows is disconnected instead, and gets the messages it missed when
+ * it resumes its session.
+ */
+class OutboundLanes {
+
+    enum Lane { CONTROL, BULK }
+
+    private final Writer socketWriter;
+    private final int maxBulkItems;
+    private final Deque<String> control = new ArrayDeque<>();
+    private final Deque<String> bulk = new ArrayDeque<>();
+    private final Lock lock = new ReentrantLock();
+    private final Condition itemQueued = lock.newCondition();
+    private final Condition writerDone = lock.newCondition();
+    private boolean closed = false;  // No more items are accepted
+    private boolean done = false;    // The writer thread has stopped
+    private final Runnable onFailure;
+
+    /**
+     * @param maxBulkItems Bulk items queued before the client is disconnected
+     * @param onFailure Called if writing to the socket fails or the bulk lane
+     * overflows, to close the connection
+     */
+    OutboundLanes(OutputStream socketOut, int maxBulkItems, Runnable onFailure) {
+        this.socketWriter = new BufferedWriter(new OutputStreamWriter(socketOut));
+        this.maxBulkItems = Math.max(1, maxBulkItems);
+        this.onFailure = onFailure;
+    }
+
+    void start(String name) {
+        Thread.ofVirtual().name(name).start(this::drain);
+    }
+
+    /**
+     * Queues text on a lane without waiting. Dropped once the lanes are
+     * closed. If the bulk lane is full, the queued items are dropped and the
+     * connection is closed.
+     */
+    void offer(Lane lane, String text) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (lane == Lane.CONTROL || bulk.size() < maxBulkItems) {
+                (lane == Lane.CONTROL ? control : bulk).add(text);
+                itemQueued.signal();
+                return;
+            }
+            discard();
+        } finally {
+            lock.unlock();
+        }
+
+        System.err.println("Client output backlog over " + maxBulkItems + " lines, disconnecting the client");
+        onFailure.run();
+    }
+
+    /**
+     * Stops accepting items and drops the queued ones. The caller holds the
+     * lock.
+     */
+    private void discard() {
+        closed = true;
+        control.clear();
+        bulk.clear();
+        itemQueued.signal();
+    }
+
+    /**
+     * @return A writer that queues each flushed chunk of text on the lane,
+     * for use under a {@link java.io.PrintWriter} with automatic flushing,
+     * which flushes once per line
+     */
+    Writer writer(Lane lane) {
+        return new Writer() {
+            private final StringBuilder pending = new StringBuilder();
+
+            @Override
+            public void write(char[] chars, int offset, int length) {
+                pending.append(chars, offset, length);
+            }
+
+            @Override
+            public void flush() {
+                if (pending.length() > 0) {
+                    offer(lane, pending.toString());
+                    pending.setLength(0);
+                }
+            }
+
+            @Override
+            public void close() {
+                flush();
+            }
+        };
+    }
+
+    /**
+     * Stops accepting items and waits for the writer to send what is queued.
+     *
+     * @param timeoutMs Maximum time to wait
+     */
+    void close(long timeoutMs) {
+        close();
+        awaitSent(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+    }
+
+    /**
+     * Stops accepting items; the writer still sends what is queued.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            itemQueued.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the writer to send what is queued, after {@link #close()}.
+     *
+     * @param deadlineNanos {@link System#nanoTime()} after which it stops waiting
+     */
+    void awaitSent(long deadlineNanos) {
+        lock.lock();
+        try {
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            while (!done && remainingNanos > 0) {
+                remainingNanos = writerDone.awaitNanos(remainingNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                String item;
+                boolean flush;
+                lock.lock();
+                try {
+                    while (control.isEmpty() && bulk.isEmpty() && !closed) {
+                        itemQueued.awaitUninterruptibly();
+                    }
+                    if (control.isEmpty() && bulk.isEmpty()) {
+                        break;  // Closed and everything is sent
+                    }
+                    if (!control.isEmpty()) {
+                        item = control.poll();
+                        flush = true;
+                    } else {
+                        item = bulk.poll();
+                        flush = control.isEmpty() && bulk.isEmpty();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                socketWriter.write(item);
+                if (flush) {
+                    socketWriter.flush();
+                }
+            }
+            socketWriter.flush();
+        } catch (IOException e) {
+            lock.lock();
+            try {
+                discard();
+            } finally {
+                lock.unlock();
+            }
+            onFailure.run();
+        } finally {
+            lock.lock();
+            try {
+                done = true;
+                writerDone.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -1,12 +1,23 @@
 package chat.server;
 
-import chat.server.ai.OllamaService;
+import chat.protocol.LineEscaping;
+import chat.server.ai.AiBackend;
+import chat.server.ai.AiConversation;
+import chat.server.ai.AiGateway;
+import chat.server.ai.AiGeneration;
+import chat.server.ai.AiResponseCache;
+import chat.server.cluster.ClusterNode;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Room {
@@ -15,26 +26,53 @@ public class Room {
     private final Set<ClientHandler> members;
     private final List<String> messageHistory;
     private static final int MAX_HISTORY_SIZE = 100;  // Limit message history size
+    private long lastMessageSeq = 0;  // Sequence number of the newest history entry
+    private boolean replica = false;  // History is a standby copy of another node's room
+
+    // Streaming protocol: partial bot output is sent as it is generated, then
+    // terminated with BOT_DONE. Only the assembled message is kept in history.
+    public static final String BOT_PARTIAL_PREFIX = "BOT_PARTIAL:";
+    public static final String BOT_DONE = "BOT_DONE";
 
     // AI room properties
     private final boolean isAiRoom;
-    private final String aiPrompt;
-    private final OllamaService ollamaService;
+    private volatile String aiPrompt;
+    private final AiGateway aiGateway;
+    private final AiConversation aiConversation;
+
+    // AI generation coalescing: at most one generation in flight per room.
+    // The debounce window can be tuned with -Dchat.ai.debounceMs=<millis>.
+    private static final long AI_DEBOUNCE_MS = Long.getLong("chat.ai.debounceMs", 300);
+    private final Lock aiStateLock = new ReentrantLock();
+    private final Set<ClientHandler> aiPendingSenders = new HashSet<>();
+    private boolean aiGenerationActive = false;  // Scheduled or running
+    private boolean aiFollowUpPending = false;   // Messages arrived during the generation
+
+    // Presence channel: joins, leaves and typing, kept out of the history and
+    // coalesced over a window that can be tuned with -Dchat.presence.windowMs=<millis>
+    private static final long PRESENCE_WINDOW_MS = Long.getLong("chat.presence.windowMs", 250);
+    private final RoomPresence presence = new RoomPresence();
+
+    // Cluster this room's events are published to, or null
+    private volatile ClusterNode cluster;
+    // Delivers room traffic, in parallel partitions for large rooms
+    private volatile BroadcastFanout fanout = BroadcastFanout.SEQUENTIAL;
 
     // Read-write lock for thread safety
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
     public Room(String name) {
-        this(name, false, null);
+        this(name, false, null, null);
     }
 
-    public Room(String name, boolean isAiRoom, String aiPrompt) {
+    public Room(String name, boolean isAiRoom, String aiPrompt, AiGateway aiGateway) {
         this.name = name;
         this.members = new HashSet<>();
         this.messageHistory = new ArrayList<>();
         this.isAiRoom = isAiRoom;
         this.aiPrompt = aiPrompt;
-        this.ollamaService = isAiRoom ? new OllamaService() : null;
+        this.aiGateway = isAiRoom ? aiGateway : null;
+        this.aiConversation = isAiRoom ? AiConversation.create() : null;
 
         if (isAiRoom) {
             System.out.println("Created AI room: " + name + " with prompt: " + aiPrompt);
@@ -54,6 +92,45 @@ public class Room {
         return aiPrompt;
     }
 
+    public void setFanout(BroadcastFanout fanout) {
+        this.fanout = fanout;
+    }
+
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Changes the prompt of an AI room, here and on the other cluster nodes.
+     */
+    public void setAiPrompt(String newPrompt) {
+        applyAiPrompt(newPrompt);
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.publishPrompt(name, newPrompt);
+        }
+    }
+
+    /**
+     * Changes the prompt of an AI room and drops cached responses that were
+     * generated for the previous prompt.
+     */
+    public void applyAiPrompt(String newPrompt) {
+        if (!isAiRoom) {
+            throw new IllegalStateException("Room " + name + " is not an AI room");
+        }
+
+        String oldPrompt = aiPrompt;
+        aiPrompt = newPrompt;
+        aiConversation.reset();
+
+        AiResponseCache cache = aiGateway != null ? aiGateway.getResponseCache() : null;
+        if (cache != null) {
+            cache.invalidatePrompt(oldPrompt);
+        }
+        System.out.println("Updated prompt of AI room: " + name + " to: " + newPrompt);
+    }
+
     public boolean addMember(ClientHandler client) {
         lock.writeLock().lock();
         try {
@@ -72,6 +149,23 @@ public class Room {
         }
     }
 
+    /**
+     * @return true if a connection of the user is a member of the room
+     */
+    public boolean hasMember(String username) {
+        lock.readLock().lock();
+        try {
+            for (ClientHandler member : members) {
+                if (username.equals(member.getUsername())) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     public Set<ClientHandler> getMembers() {
         lock.readLock().lock();
         try {
@@ -82,6 +176,18 @@ public class Room {
         }
     }
 
+    /**
+     * @return Copy of the members, in the order the fan-out partitions them
+     */
+    private List<ClientHandler> getMemberList() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(members);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     public int getMemberCount() {
         lock.readLock().lock();
         try {
@@ -91,91 +197,278 @@ public class Room {
         }
     }
 
-    public void addMessage(String message, ClientHandler sender) {
+    /**
+     * Adds a message to the history and, in AI rooms, requests a bot response.
+     *
+     * @return Sequence number assigned to the message
+     */
+    public long addMessage(String message, ClientHandler sender) {
         // First, add the user message to history
+        long seq = appendToHistory(message);
+
+        // If this is an AI room, request a response
+        if (isAiRoom && aiGateway != null) {
+            requestAiResponse(sender);
+        }
+        return seq;
+    }
+
+    /**
+     * Adds a message to the history, dropping the oldest one when full, and
+     * queues it for the room's standby node.
+     *
+     * @return Sequence number assigned to the message
+     */
+    private long appendToHistory(String message) {
         lock.writeLock().lock();
-        List<String> historySnapshot = null;
         try {
             messageHistory.add(message);
             // Keep history size limited
             if (messageHistory.size() > MAX_HISTORY_SIZE) {
                 messageHistory.remove(0);  // Remove oldest message
             }
+            replicate(++lastMessageSeq, message);
+            return lastMessageSeq;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-            if (isAiRoom) {
-                // Take a snapshot of the message history while holding the lock
-                historySnapshot = new ArrayList<>(messageHistory);
+    /**
+     * Requests a bot response for the latest messages. At most one generation
+     * runs per room: the first request starts a generation after the debounce
+     * window, and requests arriving while one is scheduled or running are
+     * merged into a single follow-up generation. Generations are queued on the
+     * shared {@link AiGateway}; the history snapshot is taken when the gateway
+     * starts the generation, so it covers every merged message.
+     */
+    private void requestAiResponse(ClientHandler sender) {
+        aiStateLock.lock();
+        try {
+            if (sender != null) {
+                aiPendingSenders.add(sender);
             }
+
+            if (aiGenerationActive) {
+                aiFollowUpPending = true;
+                return;
+            }
+            aiGenerationActive = true;
         } finally {
-            lock.writeLock().unlock();
+            aiStateLock.unlock();
         }
 
-        // If this is an AI room, generate a response
-        if (isAiRoom && ollamaService != null && historySnapshot != null) {
-            generateAiResponse(historySnapshot, sender);
-        }
-    }
-
-    private void generateAiResponse(List<String> historySnapshot, ClientHandler sender) {
-        try {
-            ollamaService.generateResponse(
-                    aiPrompt,
-                    historySnapshot,
-                    // onSuccess consumer
-                    aiResponse -> {
-                        // Format the AI's response
-                        String formattedResponse = "Bot: " + aiResponse;
-
-                        // Add the bot's response to history
-                        lock.writeLock().lock();
-                        try {
-                            messageHistory.add(formattedResponse);
-                            // Keep history size limited
-                            if (messageHistory.size() > MAX_HISTORY_SIZE) {
-                                messageHistory.remove(0);
-                            }
-                        } finally {
-                            lock.writeLock().unlock();
-                        }
-
-                        // Clean up disconnected clients before broadcasting
-                        cleanDisconnectedClients();
-
-                        // Broadcast bot's response to all members
-                        Set<ClientHandler> membersCopy;
-                        lock.readLock().lock();
-                        try {
-                            membersCopy = new HashSet<>(members);
-                        } finally {
-                            lock.readLock().unlock();
-                        }
-
-                        for (ClientHandler member : membersCopy) {
-                            if (member.isConnected()) {
-                                member.sendMessage(formattedResponse);
-                            }
-                        }
-                    },
-                    // onError consumer
-                    errorMsg -> {
-                        System.err.println("AI error in room " + name + ": " + errorMsg);
-
-                        // Notify the room of the error (only the sender)
-                        if (sender != null && sender.isConnected()) {
-                            sender.sendMessage("Bot error: Unable to generate response. Please try again later.");
-                        }
+        scheduleAiGeneration();
+    }
+
+    private void scheduleAiGeneration() {
+        CompletableFuture.runAsync(this::startAiGeneration,
+                CompletableFuture.delayedExecutor(AI_DEBOUNCE_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private void startAiGeneration() {
+        // Answer repeated questions from the cache without queueing for the model
+        if (answerFromCache()) {
+            finishAiGeneration();
+            return;
+        }
+
+        aiGateway.submit(name, this::runAiGeneration)
+                .whenComplete((result, error) -> {
+                    if (isRejection(error)) {
+                        // Shed load: the shared AI queue is saturated
+                        notifySenders(takePendingSenders(), "Bot busy: Too many AI requests right now. Please try again shortly.");
                     }
-            );
+                    finishAiGeneration();
+                });
+    }
+
+    /**
+     * Looks up the current context window in the shared response cache and,
+     * on a hit, delivers the cached response as if it had been generated.
+     *
+     * @return true if the request was answered from the cache
+     */
+    private boolean answerFromCache() {
+        AiResponseCache cache = aiGateway.getResponseCache();
+        if (cache == null || !cache.isEnabled()) {
+            return false;
+        }
+
+        List<String> contextWindow = AiConversation.contextWindow(getMessageHistory());
+        String cached = cache.get(cache.keyFor(aiGateway.getModel(), aiPrompt, contextWindow));
+        if (cached == null) {
+            return false;
+        }
+
+        takePendingSenders();
+        sendBotPartial(cached);
+        completeAiResponse(cached);
+        return true;
+    }
+
+    /**
+     * Runs once the gateway grants this room a generation slot.
+     */
+    private CompletableFuture<Void> runAiGeneration(AiBackend backend) {
+        Set<ClientHandler> senders = takePendingSenders();
+
+        // Take a snapshot of the message history when the generation starts
+        List<String> historySnapshot;
+        long lastSeq;
+        lock.readLock().lock();
+        try {
+            historySnapshot = new ArrayList<>(messageHistory);
+            lastSeq = lastMessageSeq;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // Reuse the model's context when possible, so only new messages are sent
+        AiConversation.Turn turn = aiConversation.nextTurn(aiPrompt, historySnapshot, lastSeq);
+        return generateAiResponse(backend, turn, historySnapshot, senders);
+    }
+
+    private Set<ClientHandler> takePendingSenders() {
+        aiStateLock.lock();
+        try {
+            Set<ClientHandler> senders = new HashSet<>(aiPendingSenders);
+            aiPendingSenders.clear();
+            aiFollowUpPending = false;
+            return senders;
+        } finally {
+            aiStateLock.unlock();
+        }
+    }
+
+    private static boolean isRejection(Throwable error) {
+        return error instanceof RejectedExecutionException
+                || (error != null && error.getCause() instanceof RejectedExecutionException);
+    }
+
+    /**
+     * Called when a generation ends. Starts the merged follow-up generation if
+     * messages arrived in the meantime, otherwise marks the room idle.
+     */
+    private void finishAiGeneration() {
+        aiStateLock.lock();
+        try {
+            if (!aiFollowUpPending) {
+                aiGenerationActive = false;
+                return;
+            }
+        } finally {
+            aiStateLock.unlock();
+        }
+
+        scheduleAiGeneration();
+    }
+
+    private CompletableFuture<Void> generateAiResponse(AiBackend backend, AiConversation.Turn turn,
+            List<String> historySnapshot, Set<ClientHandler> senders) {
+        String prompt = aiPrompt;
+        AiGeneration generation;
+        try {
+            generation = backend.generate(turn);
         } catch (Exception e) {
             System.err.println("Failed to request AI response: " + e.getMessage());
-            if (sender != null && sender.isConnected()) {
-                sender.sendMessage("Bot error: Unable to connect to AI service. Please try again later.");
+            notifySenders(senders, "Bot error: Unable to connect to AI service. Please try again later.");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Forward each chunk as soon as it is generated
+        generation.subscribe(this::sendBotPartial);
+
+        return generation.completion().handle((aiResponse, error) -> {
+            if (error != null) {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                System.err.println("AI error in room " + name + ": " + cause.getMessage());
+
+                // End any partially streamed response
+                sendBotDone(0);
+
+                // Notify the room of the error (only the senders)
+                notifySenders(senders, "Bot error: Unable to generate response. Please try again later.");
+                return null;
+            }
+
+            long seq = completeAiResponse(aiResponse);
+
+            // The returned context already contains the reply
+            aiConversation.markCovered(seq);
+
+            // Only cache responses to a prompt that is still current
+            AiResponseCache cache = aiGateway.getResponseCache();
+            if (cache != null && prompt.equals(aiPrompt)) {
+                String key = cache.keyFor(backend.getModel(), prompt,
+                        AiConversation.contextWindow(historySnapshot));
+                cache.put(key, prompt, aiResponse);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Stores the assembled bot response in history and ends the stream.
+     *
+     * @return Sequence number of the bot message
+     */
+    private long completeAiResponse(String aiResponse) {
+        // Add the assembled response to history
+        String message = "Bot: " + aiResponse;
+        long seq = appendToHistory(message);
+
+        // Tell members the streamed response is complete
+        sendBotDone(seq);
+
+        // Members on other nodes get the assembled response only
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.publishMessage(name, message);
+        }
+        return seq;
+    }
+
+    private static void notifySenders(Set<ClientHandler> senders, String message) {
+        for (ClientHandler sender : senders) {
+            if (sender.isConnected()) {
+                sender.sendRoomNotice(message);
             }
         }
     }
 
-    public void addMessage(String message) {
-        addMessage(message, null);
+    /**
+     * Sends a chunk of the streamed bot response to every connected member,
+     * without adding it to history.
+     */
+    private void sendBotPartial(String chunk) {
+        String escaped = LineEscaping.escape(chunk);
+        fanout.deliver(getMemberList(), member -> {
+            if (!member.isConnected()) {
+                return false;
+            }
+            member.sendBotPartial(name, escaped);
+            return true;
+        }, false);
+    }
+
+    /**
+     * Ends the streamed bot response for every connected member.
+     *
+     * @param seq Sequence number of the stored response, or 0 if it failed
+     */
+    private void sendBotDone(long seq) {
+        fanout.deliver(getMemberList(), member -> {
+            if (!member.isConnected()) {
+                return false;
+            }
+            member.sendBotDone(name, seq);
+            return true;
+        }, false);
+    }
+
+    public long addMessage(String message) {
+        return addMessage(message, null);
     }
 
     public List<String> getRecentMessages(int count) {
@@ -188,6 +481,221 @@ public class Room {
         }
     }
 
+    /**
+     * Sends history messages newer than {@code afterSeq} to a client, tagged
+     * with their sequence numbers, preceded by a header line if there are any.
+     *
+     * @param afterSeq Last sequence number the client has seen, or 0
+     * @param maxCount Maximum number of (most recent) messages to send
+     * @return Number of messages sent
+     */
+    public int sendHistory(ClientHandler client, long afterSeq, int maxCount, String header) {
+        List<String> messages;
+        long firstSeq;
+        lock.readLock().lock();
+        try {
+            int size = messageHistory.size();
+            long oldestSeq = lastMessageSeq - size + 1;
+            int start = (int) Math.max(0, Math.min(size, afterSeq - oldestSeq + 1));
+            start = Math.max(start, size - maxCount);
+            messages = new ArrayList<>(messageHistory.subList(start, size));
+            firstSeq = oldestSeq + start;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (!messages.isEmpty()) {
+            client.sendRoomMessages(name, header, firstSeq, messages);
+        }
+        return messages.size();
+    }
+
+    /**
+     * Hands the history over to the room's new owner node and forgets it
+     * here, so it is handed over only once.
+     *
+     * @return Number of messages handed over
+     */
+    public int handOffHistory() {
+        List<String> messages;
+        long firstSeq;
+        lock.writeLock().lock();
+        try {
+            messages = new ArrayList<>(messageHistory);
+            firstSeq = lastMessageSeq - messages.size() + 1;
+            messageHistory.clear();
+            lastMessageSeq = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        ClusterNode node = cluster;
+        if (node != null && !messages.isEmpty()) {
+            node.publishHistory(name, firstSeq, messages);
+        }
+        return messages.size();
+    }
+
+    /**
+     * Adds a message handed over by the room's previous owner. It keeps its
+     * sequence number, so clients resume across the move.
+     */
+    public void appendHandoff(long seq, String message) {
+        lock.writeLock().lock();
+        try {
+            if (appendSequenced(seq, message)) {
+                replicate(seq, message);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the history with one taken from a snapshot of a previous
+     * server process. Numbering continues from it, so clients resume where
+     * they left off.
+     *
+     * @param lastSeq Sequence number of the newest message
+     */
+    public void restoreHistory(long lastSeq, List<String> messages) {
+        lock.writeLock().lock();
+        try {
+            messageHistory.clear();
+            int start = Math.max(0, messages.size() - MAX_HISTORY_SIZE);
+            messageHistory.addAll(messages.subList(start, messages.size()));
+            lastMessageSeq = Math.max(lastSeq, messageHistory.size());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a message replicated by the room's owner while this node is its
+     * standby. The history then is a copy, kept until the room is promoted.
+     */
+    public void appendReplica(long seq, String message) {
+        lock.writeLock().lock();
+        try {
+            replica = true;
+            appendSequenced(seq, message);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets the standby copy before the owner sends its whole history.
+     */
+    public void resetReplica() {
+        lock.writeLock().lock();
+        try {
+            replica = true;
+            messageHistory.clear();
+            lastMessageSeq = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if the history is a standby copy of another node's room
+     */
+    public boolean isReplica() {
+        lock.readLock().lock();
+        try {
+            return replica;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Takes the room over from its previous owner: the standby copy becomes
+     * the history, and numbering continues from it.
+     *
+     * @return Number of messages taken over, or -1 if the history was not a
+     * standby copy
+     */
+    public int promoteReplica() {
+        lock.writeLock().lock();
+        try {
+            if (!replica) {
+                return -1;
+            }
+            replica = false;
+            return messageHistory.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sends the whole history to the room's standby node, replacing its
+     * copy, after the standby may have changed.
+     *
+     * @return ID of the standby node, or null if there is none
+     */
+    public String replicateHistory() {
+        ClusterNode node = cluster;
+        if (node == null) {
+            return null;
+        }
+
+        // Queued under the lock, so no new message is queued in between
+        lock.readLock().lock();
+        try {
+            return node.replicateHistory(name, lastMessageSeq - messageHistory.size() + 1, messageHistory);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a message that keeps the sequence number it was given on another
+     * node. Messages this node already has are skipped, and a gap starts the
+     * history over. The caller holds the write lock.
+     *
+     * @return false if the message was skipped
+     */
+    private boolean appendSequenced(long seq, String message) {
+        if (seq <= lastMessageSeq) {
+            return false;
+        }
+        if (seq != lastMessageSeq + 1) {
+            messageHistory.clear();
+        }
+        messageHistory.add(message);
+        if (messageHistory.size() > MAX_HISTORY_SIZE) {
+            messageHistory.remove(0);
+        }
+        lastMessageSeq = seq;
+        return true;
+    }
+
+    /**
+     * Queues a message for the room's standby node. The caller holds the
+     * write lock, so messages are queued in history order.
+     */
+    private void replicate(long seq, String message) {
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.replicateMessage(name, seq, message);
+        }
+    }
+
+    /**
+     * @return Sequence number of the newest history entry, 0 if there is none
+     */
+    public long getLastMessageSeq() {
+        lock.readLock().lock();
+        try {
+            return lastMessageSeq;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     public List<String> getMessageHistory() {
         lock.readLock().lock();
         try {
@@ -222,33 +730,138 @@ public class Room {
         }
     }
 
-    public void broadcast(String message, ClientHandler sender) {
+    /**
+     * Adds a message to the history and sends it to every member except the
+     * sender.
+     *
+     * @return Sequence number assigned to the message
+     */
+    public long broadcast(String message, ClientHandler sender) {
         // First, clean up any disconnected clients
         cleanDisconnectedClients();
 
         // Add the message to history with a write lock and trigger AI response if needed
-        addMessage(message, sender);
+        long seq = addMessage(message, sender);
 
-        // Then get a snapshot of members with a read lock
-        Set<ClientHandler> membersCopy;
-        lock.readLock().lock();
+        // Broadcast to a snapshot of the members, except the sender; large
+        // rooms are sent to in parallel partitions
+        fanout.deliver(getMemberList(), member -> member != sender && sendMessage(member, seq, message), true);
+
+        // Relay to the members connected to other nodes
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.publishMessage(name, message);
+        }
+        return seq;
+    }
+
+    /**
+     * Adds a message published by another cluster node to the history and
+     * sends it to every local member. It is not published again, and does
+     * not request a bot response: the AI answers on the node where the
+     * message was posted.
+     *
+     * @return Sequence number assigned to the message on this node
+     */
+    public long deliverRemote(String message) {
+        long seq = appendToHistory(message);
+        fanout.deliver(getMemberList(), member -> sendMessage(member, seq, message), true);
+        return seq;
+    }
+
+    /**
+     * Sends a room message to one member, if connected.
+     *
+     * @return false if the member was not sent to
+     */
+    private boolean sendMessage(ClientHandler member, long seq, String message) {
         try {
-            membersCopy = new HashSet<>(members);
-        } finally {
-            lock.readLock().unlock();
+            if (member.isConnected()) {
+                member.sendRoomMessage(name, seq, message);
+                return true;
+            }
+        } catch (Exception e) {
+            System.err.println("Error sending message to " + member.getUsername() + ": " + e.getMessage());
+            // Will be cleaned up on next broadcast/cleanup cycle
+        }
+        return false;
+    }
+
+    /**
+     * Tells the other members, on the presence channel, that a user joined
+     * or left the room. Whether the user is a member after the change is
+     * read from the room, so a user with another connection in the room
+     * is not announced.
+     *
+     * @param wasPresent Whether the user was a member before the change
+     */
+    void presenceChanged(String username, boolean wasPresent) {
+        if (presence.membershipChanged(username, wasPresent, hasMember(username))) {
+            schedulePresence();
+        }
+    }
+
+    void typing(String username) {
+        if (presence.typing(username)) {
+            schedulePresence();
         }
+    }
+
+    /**
+     * Withdraws a pending typing indicator, because the user's message was
+     * sent before the window ended.
+     */
+    void stoppedTyping(String username) {
+        presence.stoppedTyping(username);
+    }
+
+    private void schedulePresence() {
+        if (PRESENCE_WINDOW_MS <= 0) {
+            publishPresence();
+            return;
+        }
+        CompletableFuture.runAsync(this::publishPresence,
+                CompletableFuture.delayedExecutor(PRESENCE_WINDOW_MS, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Sends the presence events of the window that ended to the local members
+     * and the members on other cluster nodes.
+     */
+    private void publishPresence() {
+        RoomPresence.Update update = presence.take();
+        if (update.isEmpty()) {
+            return;
+        }
+        deliverPresence(update);
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.publishPresence(name, update.joined, update.left, update.typing);
+        }
+    }
 
-        // Broadcast to all members in the snapshot except the sender
-        // No lock needed here as we're working on a local copy
-        for (ClientHandler member : membersCopy) {
+    /**
+     * Sends presence events to every local member, without the member's own
+     * events. The text is built once, and again only for the members the
+     * events are about.
+     */
+    void deliverPresence(RoomPresence.Update update) {
+        String text = update.describe(null);
+        fanout.deliver(getMemberList(), member -> {
             try {
-                if (member != sender && member.isConnected()) {
-                    member.sendMessage(message);
+                if (!member.isConnected()) {
+                    return false;
+                }
+                String username = member.getUsername();
+                String memberText = username != null && update.involves(username) ? update.describe(username) : text;
+                if (memberText != null) {
+                    member.sendPresence(name, memberText);
+                    return true;
                 }
             } catch (Exception e) {
-                System.err.println("Error sending message to " + member.getUsername() + ": " + e.getMessage());
-                // Will be cleaned up on next broadcast/cleanup cycle
+                System.err.println("Error sending presence to " + member.getUsername() + ": " + e.getMessage());
             }
-        }
+            return false;
+        }, false);
     }
 }
@@ -0,0 +1,187 @@
+package chat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Presence channel of a room: joins, leaves and typing indicators. Events
+ * are not stored in the room history. They are collected over a short
+ * window and sent as one update per member, so a reconnect wave costs each
+ * member one line per window instead of one line per user. A user who
+ * leaves and comes back within the window (a reconnect) is not announced
+ * at all.
+ *
+ * The room sends the events: a method that returns true started a window,
+ * and the room takes the window's events with {@link #take()} once it ends.
+ */
+class RoomPresence {
+
+    // Names listed per kind of event; the rest are counted
+    private static final int MAX_NAMES = 10;
+
+    private final Lock lock = new ReentrantLock();
+    // Users whose presence changed in the current window, and whether they
+    // were in the room before it
+    private final Map<String, Boolean> presentBefore = new LinkedHashMap<>();
+    private final Map<String, Boolean> presentNow = new HashMap<>();
+    private final Set<String> typing = new LinkedHashSet<>();
+    private boolean windowOpen = false;
+
+    /**
+     * Records that a user joined or left the room.
+     *
+     * @param wasPresent Whether the user was in the room before the change
+     * @param present Whether the user is in the room after it
+     * @return true if the event started a window
+     */
+    boolean membershipChanged(String username, boolean wasPresent, boolean present) {
+        lock.lock();
+        try {
+            presentBefore.putIfAbsent(username, wasPresent);
+            presentNow.put(username, present);
+            typing.remove(username);
+            return openWindow();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the event started a window
+     */
+    boolean typing(String username) {
+        lock.lock();
+        try {
+            typing.add(username);
+            return openWindow();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Withdraws a pending typing indicator, because the user's message was
+     * sent before the window ended.
+     */
+    void stoppedTyping(String username) {
+        lock.lock();
+        try {
+            typing.remove(username);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The caller holds the lock.
+     */
+    private boolean openWindow() {
+        if (windowOpen) {
+            return false;
+        }
+        windowOpen = true;
+        return true;
+    }
+
+    /**
+     * Ends the current window.
+     *
+     * @return The events of the window that did not cancel out
+     */
+    Update take() {
+        lock.lock();
+        try {
+            windowOpen = false;
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            for (Map.Entry<String, Boolean> entry : presentBefore.entrySet()) {
+                boolean now = presentNow.get(entry.getKey());
+                if (now && !entry.getValue()) {
+                    joined.add(entry.getKey());
+                } else if (!now && entry.getValue()) {
+                    left.add(entry.getKey());
+                }
+            }
+            Update update = new Update(joined, left, new ArrayList<>(typing));
+            presentBefore.clear();
+            presentNow.clear();
+            typing.clear();
+            return update;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Presence events of one window.
+     */
+    static final class Update {
+
+        final List<String> joined;
+        final List<String> left;
+        final List<String> typing;
+
+        Update(List<String> joined, List<String> left, List<String> typing) {
+            this.joined = joined;
+            this.left = left;
+            this.typing = typing;
+        }
+
+        boolean isEmpty() {
+            return joined.isEmpty() && left.isEmpty() && typing.isEmpty();
+        }
+
+        /**
+         * @return true if the user is one of the users of the update
+         */
+        boolean involves(String username) {
+            return joined.contains(username) || left.contains(username) || typing.contains(username);
+        }
+
+        /**
+         * Describes the update, leaving out the events of one user.
+         *
+         * @param exclude User whose own events are left out, or null
+         * @return Text such as "[alice, bob joined; carol is typing]", or
+         * null if nothing is left to tell
+         */
+        String describe(String exclude) {
+            List<String> parts = new ArrayList<>(3);
+            addPart(parts, names(joined, exclude), " joined", " joined");
+            addPart(parts, names(left, exclude), " left", " left");
+            addPart(parts, names(typing, exclude), " is typing", " are typing");
+            return parts.isEmpty() ? null : "[" + String.join("; ", parts) + "]";
+        }
+
+        private static void addPart(List<String> parts, List<String> names, String singular, String plural) {
+            if (names.isEmpty()) {
+                return;
+            }
+            String list;
+            if (names.size() <= MAX_NAMES) {
+                list = String.join(", ", names);
+            } else {
+                list = String.join(", ", names.subList(0, MAX_NAMES))
+                        + " and " + (names.size() - MAX_NAMES) + " others";
+            }
+            parts.add(list + (names.size() == 1 ? singular : plural));
+        }
+
+        private static List<String> names(List<String> users, String exclude) {
+            if (exclude == null || !users.contains(exclude)) {
+                return users;
+            }
+            List<String> names = new ArrayList<>(users);
+            names.removeAll(Collections.singleton(exclude));
+            return names;
+        }
+    }
+}
@@ -1,26 +1,47 @@
 package chat.server;
 
+import chat.server.ai.AiBackend;
+import chat.server.ai.AiGateway;
+import chat.server.ai.AiResponseCache;
+import chat.server.ai.OllamaService;
 import chat.server.auth.AuthenticationService;
+import chat.server.auth.Session;
 import chat.server.auth.SessionManager;
+import chat.server.cluster.ClusterListener;
+import chat.server.cluster.ClusterNode;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 
-public class Server {
+public class Server implements ClusterListener {
 
     private final int port;
     private final String userFilePath;
@@ -29,11 +50,29 @@ public class Server {
     private ScheduledExecutorService scheduledExecutor;
     private boolean isRunning;
     private AuthenticationService authService;
+    private AiGateway aiGateway;
     private final Map<String, Room> rooms = new HashMap<>();
     private final ReadWriteLock roomsLock = new ReentrantReadWriteLock();
 
     private final SessionManager sessionManager = new SessionManager();
-    private final Map<String, Room> userSessionRooms = new HashMap<>();
+    private final CompressionMetrics compressionMetrics = new CompressionMetrics();
+    private final BroadcastFanout fanout = new BroadcastFanout(FANOUT_THRESHOLD, FANOUT_PARTITION_SIZE,
+            FANOUT_THREADS);
+    private ClusterNode cluster;  // Null unless clustering is enabled
+    private final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    // Connections of each logged-in user, so a direct message finds its
+    // recipient with one lookup
+    private final Map<String, Set<ClientHandler>> userConnections = new ConcurrentHashMap<>();
+    // Direct messages relayed to the other nodes, by ID, until one acknowledges them
+    private final Map<Long, PendingDirectMessage> pendingDirectMessages = new ConcurrentHashMap<>();
+    private final AtomicLong directMessageIds = new AtomicLong();
+    private final AdmissionControl admissionControl = new AdmissionControl(LIMIT_MAX_CONNECTIONS,
+            LIMIT_MAX_CONNECTIONS_PER_IP, LIMIT_USER_RATE, LIMIT_USER_BURST, LIMIT_ROOM_RATE, LIMIT_ROOM_BURST);
+    private final Semaphore pendingRejections = new Semaphore(MAX_PENDING_REJECTIONS);
+    // Rooms each user is subscribed to, in subscription order (last is active),
+    // kept across disconnects so a resumed session gets them back
+    private final Map<String, LinkedHashSet<Room>> userSessionRooms = new HashMap<>();
+    private final Lock userRoomsLock = new ReentrantLock();
 
     // SSL configuration
     private static final String KEYSTORE_PATH = "resources/main/server.jks";
@@ -43,6 +82,72 @@ public class Server {
     // Cleanup interval in seconds
     private static final int CLEANUP_INTERVAL = 60;
 
+    // AI backend endpoint and model (override with -Dchat.ai.url / -Dchat.ai.model)
+    private static final String AI_URL = System.getProperty("chat.ai.url", OllamaService.DEFAULT_OLLAMA_URL);
+    private static final String AI_MODEL = System.getProperty("chat.ai.model", OllamaService.DEFAULT_MODEL);
+
+    // Shared AI gateway limits (override with -Dchat.ai.maxConcurrent / -Dchat.ai.maxQueued)
+    private static final int AI_MAX_CONCURRENT = Integer.getInteger("chat.ai.maxConcurrent", 4);
+    private static final int AI_MAX_QUEUED = Integer.getInteger("chat.ai.maxQueued", 64);
+    // Window in which generations from several rooms are batched (-Dchat.ai.batchWindowMs, 0 disables)
+    private static final long AI_BATCH_WINDOW_MS = Long.getLong("chat.ai.batchWindowMs", 20);
+
+    // AI response cache limits (override with -Dchat.ai.cache.maxBytes / -Dchat.ai.cache.ttlSeconds)
+    private static final long AI_CACHE_MAX_BYTES = Long.getLong("chat.ai.cache.maxBytes", 8L * 1024 * 1024);
+    private static final long AI_CACHE_TTL_SECONDS = Long.getLong("chat.ai.cache.ttlSeconds", 600);
+
+    // Clustering (see chat.server.cluster.ClusterNode), enabled by setting
+    // -Dchat.cluster.port=<port> and -Dchat.cluster.peers=<host:port,...>
+    private static final int CLUSTER_PORT = Integer.getInteger("chat.cluster.port", 0);
+    private static final String CLUSTER_PEERS = System.getProperty("chat.cluster.peers", "");
+    private static final String CLUSTER_NODE_ID = System.getProperty("chat.cluster.nodeId");
+    private static final String CLUSTER_BIND_ADDRESS = System.getProperty("chat.cluster.bindAddress", "127.0.0.1");
+    private static final String CLUSTER_SECRET = System.getProperty("chat.cluster.secret", "");
+    // Each room is owned by one node (consistent hashing) unless
+    // -Dchat.cluster.ownership=false, which relays every message instead
+    private static final boolean CLUSTER_OWNERSHIP = Boolean.parseBoolean(
+            System.getProperty("chat.cluster.ownership", "true"));
+    // Each room owner replicates the room's history to a standby node, which
+    // takes the room over with it when the owner leaves the cluster
+    private static final boolean CLUSTER_REPLICATION = Boolean.parseBoolean(
+            System.getProperty("chat.cluster.replication", "true"));
+    // Time to wait for another node to acknowledge a relayed direct message
+    private static final long DIRECT_MESSAGE_ACK_TIMEOUT_MS = Long.getLong("chat.cluster.dmAckTimeoutMs", 2000);
+    private static final int CLUSTER_VIRTUAL_NODES = Integer.getInteger("chat.cluster.virtualNodes", 64);
+    private static final String CLUSTER_CLIENT_ADDRESS = System.getProperty("chat.cluster.clientAddress");
+    private static final int CLUSTER_QUEUE_SIZE = Integer.getInteger("chat.cluster.queueSize", 10000);
+    private static final long CLUSTER_LINGER_MS = Long.getLong("chat.cluster.lingerMs", 2);
+    private static final long CLUSTER_RECONNECT_MS = Long.getLong("chat.cluster.reconnectMs", 1000);
+
+    // Admission control and rate limits (see AdmissionControl), 0 disables a limit:
+    // -Dchat.limit.maxConnections, -Dchat.limit.maxConnectionsPerIp, and token
+    // buckets for the lines of each user and the messages posted to each room
+    private static final int LIMIT_MAX_CONNECTIONS = Integer.getInteger("chat.limit.maxConnections", 1000);
+    private static final int LIMIT_MAX_CONNECTIONS_PER_IP = Integer.getInteger("chat.limit.maxConnectionsPerIp", 50);
+    private static final double LIMIT_USER_RATE = Double.parseDouble(System.getProperty("chat.limit.userRate", "10"));
+    private static final int LIMIT_USER_BURST = Integer.getInteger("chat.limit.userBurst", 20);
+    private static final double LIMIT_ROOM_RATE = Double.parseDouble(System.getProperty("chat.limit.roomRate", "50"));
+    private static final int LIMIT_ROOM_BURST = Integer.getInteger("chat.limit.roomBurst", 100);
+    // Rejected connections told why at once, the rest are just closed
+    private static final int MAX_PENDING_REJECTIONS = 16;
+
+    // Rooms with at least chat.fanout.threshold members are sent to in
+    // parallel partitions of at least chat.fanout.partitionSize members, by
+    // up to chat.fanout.threads threads (the sender's included)
+    private static final int FANOUT_THRESHOLD = Integer.getInteger("chat.fanout.threshold", 1000);
+    private static final int FANOUT_PARTITION_SIZE = Integer.getInteger("chat.fanout.partitionSize", 250);
+    private static final int FANOUT_THREADS = Integer.getInteger("chat.fanout.threads",
+            Runtime.getRuntime().availableProcessors());
+
+    // Graceful drain, enabled by setting -Dchat.snapshot.file=<path>: on
+    // shutdown the server tells its clients to reconnect, spread over the
+    // window, and saves its state there for the next process, which loads it
+    private static final String SNAPSHOT_FILE = System.getProperty("chat.snapshot.file");
+    private static final long DRAIN_RECONNECT_DELAY_MS = Long.getLong("chat.drain.reconnectDelayMs", 2000);
+    private static final long DRAIN_WINDOW_MS = Long.getLong("chat.drain.windowMs", 10000);
+    // Time all drained clients together have to receive their RECONNECT
+    private static final long DRAIN_FLUSH_TIMEOUT_MS = 2000;
+
     public Server(int port, String userFilePath) {
         this.port = port;
         this.userFilePath = userFilePath;
@@ -53,12 +158,42 @@ public class Server {
             // Initialize the authentication service
             authService = new AuthenticationService(userFilePath);
 
+            // One AI gateway (and HTTP client) shared by every AI room
+            AiResponseCache responseCache = new AiResponseCache(AI_CACHE_MAX_BYTES,
+                    TimeUnit.SECONDS.toMillis(AI_CACHE_TTL_SECONDS));
+            AiBackend aiBackend = new OllamaService(AI_URL, AI_MODEL);
+            aiGateway = new AiGateway(aiBackend, responseCache, AI_MAX_CONCURRENT, AI_MAX_QUEUED, AI_BATCH_WINDOW_MS);
+            System.out.println("AI backend: " + AI_URL + " (model: " + AI_MODEL + ")");
+
+            // Bind the client port before joining the cluster: other nodes
+            // redirect clients here as soon as this node is on the ring
+            serverSocket = createSSLServerSocket();
+
+            // Join the cluster before creating rooms, so they are published
+            if (CLUSTER_PORT > 0) {
+                List<String> peers = new ArrayList<>();
+                for (String peer : Arrays.asList(CLUSTER_PEERS.split("\\s*,\\s*"))) {
+                    if (!peer.isEmpty()) {
+                        peers.add(peer);
+                    }
+                }
+                String nodeId = CLUSTER_NODE_ID != null ? CLUSTER_NODE_ID : "node-" + port;
+                String clientAddress = CLUSTER_CLIENT_ADDRESS != null ? CLUSTER_CLIENT_ADDRESS : "localhost:" + port;
+                cluster = new ClusterNode(nodeId, clientAddress, CLUSTER_BIND_ADDRESS, CLUSTER_PORT, peers,
+                        CLUSTER_SECRET, CLUSTER_OWNERSHIP, CLUSTER_REPLICATION, CLUSTER_VIRTUAL_NODES,
+                        CLUSTER_QUEUE_SIZE, CLUSTER_LINGER_MS, CLUSTER_RECONNECT_MS, this);
+                cluster.start();
+            }
+
+            // Take over the state of the process this one replaces
+            if (SNAPSHOT_FILE != null) {
+                loadSnapshot(Paths.get(SNAPSHOT_FILE));
+            }
+
             // Create a default general room
             createRoom("general");
             System.out.println("Created default room: general");
 
-            // Setup SSL
-            serverSocket = createSSLServerSocket();
             executor = Executors.newVirtualThreadPerTaskExecutor();
 
             // Setup scheduled tasks
@@ -79,10 +214,16 @@ public class Server {
             while (isRunning) {
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    System.out.println("New client connected: " + clientSocket.getInetAddress().getHostAddress());
+                    String address = clientSocket.getInetAddress().getHostAddress();
+                    String rejection = admissionControl.admit(address);
+                    if (rejection != null) {
+                        rejectConnection(clientSocket, rejection);
+                        continue;
+                    }
+                    System.out.println("New client connected: " + address);
 
                     // Handle each client in a separate virtual thread
-                    executor.submit(() -> handleClient(clientSocket));
+                    executor.submit(() -> handleClient(clientSocket, address));
                 } catch (IOException e) {
                     if (isRunning) {
                         System.err.println("Error accepting client connection: " + e.getMessage());
@@ -127,6 +268,19 @@ public class Server {
             } else {
                 System.out.println("Cleanup completed. No disconnected clients found.");
             }
+
+            if (aiGateway != null) {
+                System.out.println(aiGateway.getMetricsSummary());
+                System.out.println(aiGateway.getBackendMetricsSummary());
+                System.out.println(aiGateway.getResponseCache().getMetricsSummary());
+            }
+            System.out.println(compressionMetrics.getMetricsSummary());
+            System.out.println(fanout.getMetricsSummary());
+            admissionControl.evictIdleBuckets();
+            System.out.println(admissionControl.getMetricsSummary());
+            if (cluster != null) {
+                System.out.println(cluster.getMetricsSummary());
+            }
         } catch (Exception e) {
             System.err.println("Error during periodic cleanup: " + e.getMessage());
         }
@@ -165,34 +319,177 @@ public class Server {
         }
     }
 
-    private void handleClient(Socket clientSocket) {
+    private void handleClient(Socket clientSocket, String address) {
         ClientHandler clientHandler = new ClientHandler(clientSocket, authService, this);
-        clientHandler.handle();
+        clients.add(clientHandler);
+        try {
+            clientHandler.handle();
+        } finally {
+            clients.remove(clientHandler);
+            admissionControl.release(address);
+        }
     }
 
-    public Room createRoom(String roomName) {
-        roomsLock.writeLock().lock();
-        try {
-            if (rooms.containsKey(roomName)) {
-                return null; // Room already exists
+    /**
+     * Turns a connection away. A few at a time are told why, which takes a
+     * TLS handshake; beyond that, connections are closed right away so a
+     * connection flood costs as little as possible.
+     */
+    private void rejectConnection(Socket clientSocket, String reason) {
+        if (!pendingRejections.tryAcquire()) {
+            closeQuietly(clientSocket);
+            return;
+        }
+        executor.submit(() -> {
+            try (clientSocket) {
+                clientSocket.setSoTimeout(2000);
+                PrintWriter rejectionOut = new PrintWriter(clientSocket.getOutputStream(), true);
+                rejectionOut.println("ERROR: " + reason);
+            } catch (IOException e) {
+                // The client is turned away either way
+            } finally {
+                pendingRejections.release();
             }
+        });
+    }
 
-            Room newRoom = new Room(roomName);
-            rooms.put(roomName, newRoom);
-            return newRoom;
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    /**
+     * Tells every connected client to reconnect, staggering the delays over
+     * the drain window so the next process is not hit by all of them at once,
+     * then closes the connections once the clients were told, within one
+     * deadline for all of them.
+     */
+    private void drainClients() {
+        List<ClientHandler> connected = new ArrayList<>(clients);
+        for (int i = 0; i < connected.size(); i++) {
+            connected.get(i).drain(DRAIN_RECONNECT_DELAY_MS + i * DRAIN_WINDOW_MS / connected.size());
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_FLUSH_TIMEOUT_MS);
+        for (ClientHandler client : connected) {
+            client.finishDrain(deadline);
+        }
+        System.out.println("Told " + connected.size() + " client(s) to reconnect within "
+                + (DRAIN_RECONNECT_DELAY_MS + DRAIN_WINDOW_MS) + " ms");
+    }
+
+    /**
+     * Saves the rooms, sessions and subscriptions for the next process.
+     */
+    private void saveSnapshot(Path file) {
+        ServerSnapshot snapshot = new ServerSnapshot();
+        for (Room room : getRooms().values()) {
+            snapshot.addRoom(room.getName(), room.isAiRoom() ? room.getAiPrompt() : null,
+                    room.getLastMessageSeq(), room.getMessageHistory());
+        }
+        for (Map.Entry<String, Session> entry : sessionManager.getSessions().entrySet()) {
+            snapshot.addSession(entry.getKey(), entry.getValue());
+        }
+        userRoomsLock.lock();
+        try {
+            for (Map.Entry<String, LinkedHashSet<Room>> entry : userSessionRooms.entrySet()) {
+                List<String> roomNames = new ArrayList<>();
+                for (Room room : entry.getValue()) {
+                    roomNames.add(room.getName());
+                }
+                snapshot.addUserRooms(entry.getKey(), roomNames);
+            }
         } finally {
-            roomsLock.writeLock().unlock();
+            userRoomsLock.unlock();
         }
+
+        try {
+            snapshot.save(file);
+            System.out.println("Snapshot saved to " + file + ": " + snapshot.getRooms().size() + " room(s), "
+                    + snapshot.getSessions().size() + " session(s)");
+        } catch (IOException e) {
+            System.err.println("Failed to save snapshot to " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Restores the state saved by the previous process, then deletes the
+     * snapshot so a later restart does not bring back stale state.
+     */
+    private void loadSnapshot(Path file) {
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        ServerSnapshot snapshot;
+        try {
+            snapshot = ServerSnapshot.load(file);
+            Files.delete(file);
+        } catch (IOException e) {
+            System.err.println("Failed to load snapshot from " + file + ": " + e.getMessage());
+            return;
+        }
+
+        for (ServerSnapshot.RoomState state : snapshot.getRooms()) {
+            if (state.getAiPrompt() != null) {
+                createAiRoom(state.getName(), state.getAiPrompt());
+            } else {
+                createRoom(state.getName());
+            }
+            getRoom(state.getName()).restoreHistory(state.getLastSeq(), state.getHistory());
+        }
+        for (Map.Entry<String, Session> entry : snapshot.getSessions().entrySet()) {
+            Session session = entry.getValue();
+            if (!session.isExpired()) {
+                sessionManager.addSession(entry.getKey(), session.getUsername(), session.getExpirationTime());
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : snapshot.getUserRooms().entrySet()) {
+            for (String roomName : entry.getValue()) {
+                Room room = getRoom(roomName);
+                if (room != null) {
+                    addRoomForUser(entry.getKey(), room);
+                }
+            }
+        }
+        System.out.println("Snapshot loaded from " + file + ": " + snapshot.getRooms().size() + " room(s), "
+                + snapshot.getSessions().size() + " session(s)");
+    }
+
+    public Room createRoom(String roomName) {
+        Room newRoom = addRoom(roomName, null);
+        if (newRoom != null && cluster != null) {
+            cluster.publishRoom(roomName, null);
+        }
+        return newRoom;
     }
 
     public Room createAiRoom(String roomName, String aiPrompt) {
+        Room newRoom = addRoom(roomName, aiPrompt);
+        if (newRoom != null && cluster != null) {
+            cluster.publishRoom(roomName, aiPrompt);
+        }
+        return newRoom;
+    }
+
+    /**
+     * Creates a room unless one with that name exists.
+     *
+     * @param aiPrompt Prompt of an AI room, or null for a regular room
+     * @return The new room, or null if it already existed
+     */
+    private Room addRoom(String roomName, String aiPrompt) {
         roomsLock.writeLock().lock();
         try {
             if (rooms.containsKey(roomName)) {
                 return null; // Room already exists
             }
 
-            Room newRoom = new Room(roomName, true, aiPrompt);
+            Room newRoom = aiPrompt == null ? new Room(roomName) : new Room(roomName, true, aiPrompt, aiGateway);
+            newRoom.setCluster(cluster);
+            newRoom.setFanout(fanout);
             rooms.put(roomName, newRoom);
             return newRoom;
         } finally {
@@ -200,6 +497,168 @@ public class Server {
         }
     }
 
+    @Override
+    public void onRemoteRoom(String origin, String roomName, String aiPrompt) {
+        if (addRoom(roomName, aiPrompt) != null) {
+            System.out.println("Room " + roomName + " created on node " + origin);
+        }
+    }
+
+    @Override
+    public void onRemotePrompt(String origin, String roomName, String aiPrompt) {
+        Room room = getRoom(roomName);
+        if (room != null && room.isAiRoom()) {
+            room.applyAiPrompt(aiPrompt);
+        }
+    }
+
+    /**
+     * Creates a session token for a user who logged in, valid on every
+     * cluster node.
+     */
+    public String createSession(String username) {
+        String token = sessionManager.createSession(username);
+        Session session = sessionManager.getSession(token);
+        if (cluster != null && session != null) {
+            cluster.publishSession(token, username, session.getExpirationTime());
+        }
+        return token;
+    }
+
+    public void invalidateSession(String token) {
+        sessionManager.invalidateSession(token);
+        if (cluster != null) {
+            cluster.publishSessionEnd(token);
+        }
+    }
+
+    @Override
+    public void onRemoteSession(String origin, String token, String username, long expirationTime) {
+        sessionManager.addSession(token, username, expirationTime);
+    }
+
+    @Override
+    public void onRemoteSessionEnd(String origin, String token) {
+        sessionManager.invalidateSession(token);
+    }
+
+    /**
+     * @return Client address ("host:port") of the node that owns the room,
+     * or null if clients of the room are served here
+     */
+    public String getRedirectAddress(String roomName) {
+        if (cluster == null || cluster.isLocal(roomName)) {
+            return null;
+        }
+        return cluster.ownerAddressOf(roomName);
+    }
+
+    @Override
+    public void onRemoteHistory(String origin, String roomName, long seq, String message) {
+        if (!cluster.isLocal(roomName)) {
+            return; // Handed to another node
+        }
+        Room room = getRoom(roomName);
+        if (room == null) {
+            // Announced before its history; its announcement was dropped
+            System.err.println("Dropping history of unknown room " + roomName + " from node " + origin);
+            return;
+        }
+        room.appendHandoff(seq, message);
+    }
+
+    @Override
+    public void onReplica(String origin, String roomName, long seq, String message) {
+        if (cluster.isLocal(roomName)) {
+            return; // Owned here since, the sender will learn it
+        }
+        Room room = getRoom(roomName);
+        if (room == null) {
+            // Announced before it is replicated; resynced on the next membership change
+            return;
+        }
+        room.appendReplica(seq, message);
+    }
+
+    @Override
+    public void onReplicaReset(String origin, String roomName) {
+        Room room = getRoom(roomName);
+        if (room != null && !cluster.isLocal(roomName)) {
+            room.resetReplica();
+        }
+    }
+
+    /**
+     * Shares the rooms and sessions with new nodes and rebalances the rooms.
+     * The rooms are announced first, with their AI prompts, so a node
+     * receiving a room's handed-over or replicated history already has the
+     * room with the right type. Rooms
+     * this node now owns are replicated to their (possibly new) standby, and
+     * take over the standby copy if this node was their standby. Rooms this
+     * node no longer owns are moved: their history is handed over to the new
+     * owner, then their members are redirected to it. Standby copies of
+     * other nodes' rooms are kept.
+     */
+    @Override
+    public void onMembershipChanged() {
+        // Nodes that just joined learn the rooms and sessions created before
+        Map<String, Room> knownRooms = getRooms();
+        for (Room room : knownRooms.values()) {
+            cluster.publishRoom(room.getName(), room.isAiRoom() ? room.getAiPrompt() : null);
+        }
+        for (Map.Entry<String, Session> entry : sessionManager.getSessions().entrySet()) {
+            Session session = entry.getValue();
+            cluster.publishSession(entry.getKey(), session.getUsername(), session.getExpirationTime());
+        }
+
+        for (Room room : knownRooms.values()) {
+            if (cluster.isLocal(room.getName())) {
+                int promoted = room.promoteReplica();
+                if (promoted >= 0) {
+                    cluster.recordPromotion();
+                    System.out.println("Room " + room.getName() + " taken over with " + promoted
+                            + " replicated message(s)");
+                }
+                room.replicateHistory();
+                continue;
+            }
+            if (room.isReplica()) {
+                continue;
+            }
+
+            String ownerAddress = cluster.ownerAddressOf(room.getName());
+            Set<ClientHandler> members = room.getMembers();
+            int handedOver = room.handOffHistory();
+            for (ClientHandler member : members) {
+                member.moveToNode(room, ownerAddress);
+            }
+            if (handedOver > 0 || !members.isEmpty()) {
+                System.out.println("Room " + room.getName() + " moved to " + ownerAddress + ": handed over "
+                        + handedOver + " message(s), redirected " + members.size() + " member(s)");
+            }
+        }
+    }
+
+    @Override
+    public void onRemoteMessage(String origin, String roomName, String message) {
+        Room room = getRoom(roomName);
+        if (room == null) {
+            // Announced when this node joined; its announcement was dropped
+            System.err.println("Dropping message for unknown room " + roomName + " from node " + origin);
+            return;
+        }
+        room.deliverRemote(message);
+    }
+
+    @Override
+    public void onRemotePresence(String origin, String roomName, List<String> joined, List<String> left,
+            List<String> typing) {
+        Room room = getRoom(roomName);
+        if (room != null) {
+            room.deliverPresence(new RoomPresence.Update(joined, left, typing));
+        }
+    }
+
     public Room getRoom(String roomName) {
         roomsLock.readLock().lock();
         try {
@@ -220,22 +679,181 @@ public class Server {
 
 
 
-    public Room getRoomForUser(String user) {
-        return userSessionRooms.get(user);
+    /**
+     * @return Rooms the user is subscribed to, oldest subscription first
+     */
+    public List<Room> getRoomsForUser(String user) {
+        userRoomsLock.lock();
+        try {
+            LinkedHashSet<Room> rooms = userSessionRooms.get(user);
+            return rooms != null ? new ArrayList<>(rooms) : new ArrayList<>();
+        } finally {
+            userRoomsLock.unlock();
+        }
     }
 
-    public void setRoomForUser(String user, Room room) {
+    /**
+     * Records a subscription, moving the room to the end (the active room).
+     */
+    public void addRoomForUser(String user, Room room) {
         if (user == null) {
             throw new IllegalArgumentException("User cannot be null");
         }
-        userSessionRooms.put(user, room);
+        userRoomsLock.lock();
+        try {
+            LinkedHashSet<Room> rooms = userSessionRooms.computeIfAbsent(user, k -> new LinkedHashSet<>());
+            rooms.remove(room);
+            rooms.add(room);
+        } finally {
+            userRoomsLock.unlock();
+        }
+    }
+
+    public void removeRoomForUser(String user, Room room) {
+        userRoomsLock.lock();
+        try {
+            LinkedHashSet<Room> rooms = userSessionRooms.get(user);
+            if (rooms != null) {
+                rooms.remove(room);
+                if (rooms.isEmpty()) {
+                    userSessionRooms.remove(user);
+                }
+            }
+        } finally {
+            userRoomsLock.unlock();
+        }
+    }
+
+    public void clearRoomsForUser(String user) {
+        userRoomsLock.lock();
+        try {
+            userSessionRooms.remove(user);
+        } finally {
+            userRoomsLock.unlock();
+        }
     }
 
     public SessionManager getSessionManager() {
         return sessionManager;
     }
 
-    public void stop() {
+    /**
+     * Records a user's connection once it has authenticated.
+     */
+    public void registerConnection(String username, ClientHandler handler) {
+        userConnections.compute(username, (user, handlers) -> {
+            if (handlers == null) {
+                handlers = ConcurrentHashMap.newKeySet();
+            }
+            handlers.add(handler);
+            return handlers;
+        });
+    }
+
+    /**
+     * Forgets a user's connection on logout or disconnect.
+     */
+    public void unregisterConnection(String username, ClientHandler handler) {
+        userConnections.computeIfPresent(username, (user, handlers) -> {
+            handlers.remove(handler);
+            return handlers.isEmpty() ? null : handlers;
+        });
+    }
+
+    /**
+     * Sends a direct message to every connection of a user. If the user is
+     * not connected here, the message is relayed to the other cluster nodes,
+     * which deliver it to the user's connections there and acknowledge it.
+     * The sender is told the message was delivered once it was delivered
+     * here or a node acknowledged it, and that the user is not online if no
+     * node did in time.
+     */
+    public void sendDirectMessage(ClientHandler sender, String to, String text) {
+        if (deliverDirectMessage(sender.getUsername(), to, text) > 0) {
+            sender.confirmDirectMessage(to, text, true);
+            return;
+        }
+        if (cluster == null) {
+            sender.confirmDirectMessage(to, text, false);
+            return;
+        }
+
+        long id = directMessageIds.incrementAndGet();
+        pendingDirectMessages.put(id, new PendingDirectMessage(sender, to, text));
+        cluster.publishDirectMessage(id, sender.getUsername(), to, text);
+        scheduledExecutor.schedule(() -> {
+            PendingDirectMessage pending = pendingDirectMessages.remove(id);
+            if (pending != null) {
+                pending.sender.confirmDirectMessage(pending.to, pending.text, false);
+            }
+        }, DIRECT_MESSAGE_ACK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Number of local connections the message was delivered to
+     */
+    private int deliverDirectMessage(String from, String to, String text) {
+        Set<ClientHandler> handlers = userConnections.get(to);
+        if (handlers == null) {
+            return 0;
+        }
+        int delivered = 0;
+        for (ClientHandler handler : handlers) {
+            if (handler.isConnected()) {
+                handler.deliverDirectMessage(from, text);
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    @Override
+    public void onRemoteDirectMessage(String origin, long id, String from, String to, String text) {
+        if (deliverDirectMessage(from, to, text) > 0) {
+            cluster.acknowledgeDirectMessage(origin, id);
+        }
+    }
+
+    @Override
+    public void onDirectMessageAck(String origin, long id) {
+        PendingDirectMessage pending = pendingDirectMessages.remove(id);
+        if (pending != null) {
+            pending.sender.confirmDirectMessage(pending.to, pending.text, true);
+        }
+    }
+
+    /**
+     * A direct message relayed to the other nodes, until one of them
+     * acknowledges it.
+     */
+    private static final class PendingDirectMessage {
+
+        final ClientHandler sender;
+        final String to;
+        final String text;
+
+        PendingDirectMessage(ClientHandler sender, String to, String text) {
+            this.sender = sender;
+            this.to = to;
+            this.text = text;
+        }
+    }
+
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    public CompressionMetrics getCompressionMetrics() {
+        return compressionMetrics;
+    }
+
+    /**
+     * Stops the server. With a snapshot file configured, this is a graceful
+     * drain: no new connections are accepted, clients are told to reconnect
+     * with staggered delays, and once their handlers have finished, the
+     * state is saved for the next process.
+     */
+    public synchronized void stop() {
         if (!isRunning) {
             return; // Already stopped
         }
@@ -253,6 +871,17 @@ public class Server {
             System.err.println("Error closing server socket: " + e.getMessage());
         }
 
+        if (SNAPSHOT_FILE != null) {
+            drainClients();
+        }
+
+        // Leave the cluster
+        if (cluster != null) {
+            cluster.stop();
+        }
+
+        fanout.shutdown();
+
         // Shut down the scheduled executor
         if (scheduledExecutor != null) {
             scheduledExecutor.shutdown();
@@ -281,6 +910,10 @@ public class Server {
             }
         }
 
+        if (SNAPSHOT_FILE != null) {
+            saveSnapshot(Paths.get(SNAPSHOT_FILE));
+        }
+
         System.out.println("Server shutdown complete");
     }
 
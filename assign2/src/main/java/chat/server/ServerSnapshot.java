@@ -0,0 +1,202 @@
+package chat.server;
+
+import chat.protocol.LineEscaping;
+import chat.server.auth.Session;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State a draining server hands to the process that replaces it: the rooms
+ * with their recent history, the sessions, and the rooms each user is
+ * subscribed to. With it, clients resume with their session token and get
+ * their rooms back instead of logging in again.
+ *
+ * Stored as text, one record per line, with line breaks in messages and
+ * prompts escaped:
+ * <pre>
+ * ROOM &lt;name&gt; &lt;last seq&gt; [&lt;AI prompt&gt;]
+ * MSG &lt;text&gt;                       history of the ROOM above, oldest first
+ * SESSION &lt;token&gt; &lt;username&gt; &lt;expiration time&gt;
+ * USER &lt;username&gt; &lt;room&gt;...       subscriptions, active room last
+ * </pre>
+ */
+public class ServerSnapshot {
+
+    private static final String ROOM = "ROOM";
+    private static final String MESSAGE = "MSG";
+    private static final String SESSION = "SESSION";
+    private static final String USER = "USER";
+
+    /**
+     * A room as it was when the snapshot was taken.
+     */
+    public static class RoomState {
+        private final String name;
+        private final String aiPrompt;
+        private final long lastSeq;
+        private final List<String> history;
+
+        RoomState(String name, String aiPrompt, long lastSeq, List<String> history) {
+            this.name = name;
+            this.aiPrompt = aiPrompt;
+            this.lastSeq = lastSeq;
+            this.history = history;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Prompt of an AI room, or null for a regular room
+         */
+        public String getAiPrompt() {
+            return aiPrompt;
+        }
+
+        /**
+         * @return Sequence number of the newest history message
+         */
+        public long getLastSeq() {
+            return lastSeq;
+        }
+
+        public List<String> getHistory() {
+            return history;
+        }
+    }
+
+    private final List<RoomState> rooms = new ArrayList<>();
+    private final Map<String, Session> sessions = new LinkedHashMap<>();
+    private final Map<String, List<String>> userRooms = new LinkedHashMap<>();
+
+    /**
+     * @param aiPrompt Prompt of an AI room, or null for a regular room
+     * @param lastSeq Sequence number of the newest history message
+     */
+    public void addRoom(String name, String aiPrompt, long lastSeq, List<String> history) {
+        rooms.add(new RoomState(name, aiPrompt, lastSeq, new ArrayList<>(history)));
+    }
+
+    public void addSession(String token, Session session) {
+        sessions.put(token, session);
+    }
+
+    /**
+     * @param roomNames Rooms the user is subscribed to, active room last
+     */
+    public void addUserRooms(String username, List<String> roomNames) {
+        userRooms.put(username, new ArrayList<>(roomNames));
+    }
+
+    public List<RoomState> getRooms() {
+        return rooms;
+    }
+
+    public Map<String, Session> getSessions() {
+        return sessions;
+    }
+
+    public Map<String, List<String>> getUserRooms() {
+        return userRooms;
+    }
+
+    /**
+     * Writes the snapshot, replacing the file atomically so the next process
+     * never reads half of it.
+     */
+    public void save(Path file) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (RoomState room : rooms) {
+            content.append(ROOM).append(' ').append(room.name).append(' ').append(room.lastSeq);
+            if (room.aiPrompt != null) {
+                content.append(' ').append(LineEscaping.escape(room.aiPrompt));
+            }
+            content.append('\n');
+            for (String message : room.history) {
+                content.append(MESSAGE).append(' ').append(LineEscaping.escape(message)).append('\n');
+            }
+        }
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            Session session = entry.getValue();
+            content.append(SESSION).append(' ').append(entry.getKey())
+                    .append(' ').append(session.getUsername())
+                    .append(' ').append(session.getExpirationTime()).append('\n');
+        }
+        for (Map.Entry<String, List<String>> entry : userRooms.entrySet()) {
+            content.append(USER).append(' ').append(entry.getKey());
+            for (String roomName : entry.getValue()) {
+                content.append(' ').append(roomName);
+            }
+            content.append('\n');
+        }
+
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(temp, content, StandardCharsets.UTF_8);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a snapshot written by {@link #save}. Malformed lines are skipped.
+     */
+    public static ServerSnapshot load(Path file) throws IOException {
+        ServerSnapshot snapshot = new ServerSnapshot();
+        RoomState currentRoom = null;
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 4);
+                try {
+                    switch (parts[0]) {
+                        case ROOM:
+                            if (parts.length >= 3) {
+                                String aiPrompt = parts.length > 3 ? LineEscaping.unescape(parts[3]) : null;
+                                currentRoom = new RoomState(parts[1], aiPrompt, Long.parseLong(parts[2]),
+                                        new ArrayList<>());
+                                snapshot.rooms.add(currentRoom);
+                            }
+                            break;
+                        case MESSAGE:
+                            if (currentRoom != null) {
+                                currentRoom.history.add(LineEscaping.unescape(line.substring(Math.min(line.length(),
+                                        MESSAGE.length() + 1))));
+                            }
+                            break;
+                        case SESSION:
+                            if (parts.length == 4) {
+                                snapshot.sessions.put(parts[1], new Session(parts[2], Long.parseLong(parts[3])));
+                            }
+                            break;
+                        case USER:
+                            String[] names = line.split(" ");
+                            if (names.length > 2) {
+                                snapshot.userRooms.put(names[1],
+                                        new ArrayList<>(Arrays.asList(names).subList(2, names.length)));
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("Skipping malformed snapshot line: " + line);
+                }
+            }
+        }
+        return snapshot;
+    }
+}
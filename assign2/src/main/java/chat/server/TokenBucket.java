@@ -0,0 +1,74 @@
+package chat.server;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket rate limiter: holds up to {@code burst} tokens and refills at
+ * {@code ratePerSecond}. Each allowed action takes one token, so a client can
+ * send a burst at once and then keep up the rate, but no more.
+ *
+ * Tokens are refilled lazily when one is requested; an idle bucket costs no
+ * work.
+ */
+public class TokenBucket {
+
+    private final double ratePerNano;
+    private final double burst;
+    private final Lock lock = new ReentrantLock();
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param ratePerSecond Tokens added per second
+     * @param burst Maximum number of tokens, and the number the bucket starts with
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        this.ratePerNano = ratePerSecond / 1_000_000_000.0;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return false if the rate is exceeded
+     */
+    public boolean tryAcquire() {
+        lock.lock();
+        try {
+            refill();
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the bucket has refilled completely, so dropping it and
+     * starting a new one later makes no difference
+     */
+    public boolean isFull() {
+        lock.lock();
+        try {
+            refill();
+            return tokens >= burst;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The caller holds the lock.
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) * ratePerNano);
+        lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,38 @@
+package chat.server.ai;
+
+/**
+ * Service provider interface for the model that generates AI room replies.
+ * Rooms only talk to a backend through the {@link AiGateway}, so backends can
+ * be swapped or tuned without touching {@code Room}. {@link OllamaService} is
+ * the default implementation.
+ */
+public interface AiBackend {
+
+    /**
+     * @return Name of the model that generates responses
+     */
+    String getModel();
+
+    /**
+     * Starts generating a response for one conversation turn. The returned
+     * generation streams text chunks as they are produced and completes with
+     * the full response. Implementations must record the model context
+     * returned for the turn (see {@link AiConversation.Turn}) before completing.
+     *
+     * @param turn Prompt and optional context to continue from
+     * @return The running generation
+     */
+    AiGeneration generate(AiConversation.Turn turn);
+
+    /**
+     * @return Number of sequences the backend can generate concurrently. When
+     * greater than one, the gateway batches pending generations from several
+     * rooms into one dispatch cycle.
+     */
+    int maxConcurrentSequences();
+
+    /**
+     * @return One-line summary of the backend's metrics
+     */
+    String getMetricsSummary();
+}
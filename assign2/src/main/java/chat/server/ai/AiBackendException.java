@@ -0,0 +1,13 @@
+package chat.server.ai;
+
+/**
+ * Failure of an AI generation, as reported by an {@link AiBackend}.
+ */
+public class AiBackendException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public AiBackendException(String message) {
+        super(message);
+    }
+}
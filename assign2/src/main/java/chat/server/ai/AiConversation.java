@@ -0,0 +1,267 @@
+package chat.server.ai;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * Per-room conversation state for the AI backend. Ollama returns a
+ * {@code context} array that encodes everything the model has read and
+ * written so far; passing it back lets the next request send only the new
+ * messages instead of re-sending the base prompt and history, which is what
+ * dominates prompt-processing time.
+ *
+ * When no reusable context exists (first turn, prompt change, context grown
+ * past its limit) a full prompt is built from the base prompt, a rolling
+ * summary of older messages and a history window sized by an approximate
+ * token budget. Messages that fall out of the window are folded into the
+ * summary rather than dropped.
+ *
+ * History messages are identified by the room's sequence numbers: the
+ * message at index i of a history snapshot ending at {@code lastSeq} has
+ * sequence {@code lastSeq - size + 1 + i}.
+ */
+public class AiConversation {
+
+    // Approximate token budget of the history window sent with a full prompt,
+    // and the context size after which a room starts again from a full prompt
+    private static final int CONTEXT_WINDOW_TOKENS = Integer.getInteger("chat.ai.contextTokens", 1024);
+    private static final int MAX_CONTEXT_TOKENS = Integer.getInteger("chat.ai.maxContextTokens", 4096);
+
+    private static final int CHARS_PER_TOKEN = 4;
+    private static final int SUMMARY_LINE_CHARS = 120;
+
+    private final int windowTokens;
+    private final int summaryTokens;
+    private final int maxContextTokens;
+
+    // Reusable model context and the history it covers
+    private int[] context = null;
+    private String contextPrompt = null;
+    private long contextSeq = 0;
+    // Messages after contextSeq that are already part of the context (the bot's own replies)
+    private final NavigableSet<Long> coveredSeqs = new TreeSet<>();
+
+    // Rolling summary of messages that slid out of the history window
+    private final Deque<String> summaryLines = new ArrayDeque<>();
+    private int summaryChars = 0;
+    private long summarizedSeq = 0;
+
+    /**
+     * @param windowTokens Approximate token budget of the history window
+     * @param maxContextTokens Context size after which the conversation
+     * starts again from a full prompt
+     */
+    public AiConversation(int windowTokens, int maxContextTokens) {
+        this.windowTokens = Math.max(1, windowTokens);
+        this.summaryTokens = Math.max(1, windowTokens / 4);
+        this.maxContextTokens = maxContextTokens;
+    }
+
+    /**
+     * One request to the model: the prompt text to send and, when reusing
+     * the conversation, the context to send with it.
+     */
+    public static class Turn {
+        private final AiConversation conversation;
+        private final List<String> promptParts;
+        private final int[] context;
+        private final String basePrompt;
+        private final long lastSeq;
+
+        Turn(AiConversation conversation, List<String> promptParts, int[] context, String basePrompt, long lastSeq) {
+            this.conversation = conversation;
+            this.promptParts = promptParts;
+            this.context = context;
+            this.basePrompt = basePrompt;
+            this.lastSeq = lastSeq;
+        }
+
+        /**
+         * @return Prompt lines, sent joined by newlines
+         */
+        public List<String> getPromptParts() {
+            return promptParts;
+        }
+
+        /**
+         * @return Context to continue from, or null for a fresh conversation
+         */
+        public int[] getContext() {
+            return context;
+        }
+
+        public boolean reusesContext() {
+            return context != null;
+        }
+
+        /**
+         * Records the context returned by the model for this turn.
+         */
+        void complete(int[] newContext) {
+            if (conversation != null && newContext != null) {
+                conversation.completeTurn(this, newContext);
+            }
+        }
+    }
+
+    /**
+     * Creates the conversation state for a room, using the configured token
+     * budget and context limit.
+     */
+    public static AiConversation create() {
+        return new AiConversation(CONTEXT_WINDOW_TOKENS, MAX_CONTEXT_TOKENS);
+    }
+
+    /**
+     * Selects the part of the message history that is sent to the model with
+     * a full prompt: the most recent messages that fit in the configured
+     * token budget.
+     *
+     * @param history Full room history, oldest first
+     * @return The messages included in the prompt, oldest first
+     */
+    public static List<String> contextWindow(List<String> history) {
+        return window(history, CONTEXT_WINDOW_TOKENS);
+    }
+
+    /**
+     * Plans the next request for a room.
+     *
+     * @param basePrompt Current room prompt
+     * @param history History snapshot, oldest first
+     * @param lastSeq Sequence number of the last message in the snapshot
+     */
+    public synchronized Turn nextTurn(String basePrompt, List<String> history, long lastSeq) {
+        long firstSeq = lastSeq - history.size() + 1;
+
+        if (context != null && basePrompt.equals(contextPrompt) && contextSeq >= firstSeq - 1
+                && context.length <= maxContextTokens) {
+            List<String> newMessages = new ArrayList<>();
+            int tokens = 0;
+            for (int i = 0; i < history.size(); i++) {
+                long seq = firstSeq + i;
+                if (seq > contextSeq && !coveredSeqs.contains(seq)) {
+                    newMessages.add(history.get(i));
+                    tokens += estimateTokens(history.get(i));
+                }
+            }
+
+            if (!newMessages.isEmpty() && tokens <= windowTokens) {
+                return new Turn(this, newMessages, context, basePrompt, lastSeq);
+            }
+        }
+
+        // Start over from a full prompt
+        resetContext();
+        List<String> window = window(history, windowTokens);
+        foldIntoSummary(history, firstSeq, history.size() - window.size());
+
+        List<String> parts = new ArrayList<>();
+        parts.add(basePrompt);
+        parts.add("");
+        if (!summaryLines.isEmpty()) {
+            parts.add("Summary of the earlier conversation:");
+            parts.addAll(summaryLines);
+            parts.add("");
+        }
+        parts.addAll(window);
+        return new Turn(this, parts, null, basePrompt, lastSeq);
+    }
+
+    private synchronized void completeTurn(Turn turn, int[] newContext) {
+        context = newContext;
+        contextPrompt = turn.basePrompt;
+        contextSeq = Math.max(contextSeq, turn.lastSeq);
+        coveredSeqs.headSet(contextSeq, true).clear();
+    }
+
+    /**
+     * Marks a history message as already known to the model, so it is not
+     * sent again. Used for the bot's own replies, which the returned context
+     * already contains.
+     */
+    public synchronized void markCovered(long seq) {
+        if (context != null && seq > contextSeq) {
+            coveredSeqs.add(seq);
+        }
+    }
+
+    /**
+     * Forgets the model context and summary, e.g. after the room prompt changed.
+     */
+    public synchronized void reset() {
+        resetContext();
+        summaryLines.clear();
+        summaryChars = 0;
+    }
+
+    private void resetContext() {
+        context = null;
+        contextPrompt = null;
+        coveredSeqs.clear();
+    }
+
+    /**
+     * Folds the first {@code count} snapshot messages into the rolling
+     * summary, skipping any already folded. Each message is shortened to a
+     * single line and the oldest lines are dropped once the summary exceeds
+     * its token budget.
+     */
+    private void foldIntoSummary(List<String> history, long firstSeq, int count) {
+        for (int i = 0; i < count; i++) {
+            long seq = firstSeq + i;
+            if (seq <= summarizedSeq) {
+                continue;
+            }
+            summarizedSeq = seq;
+
+            String message = history.get(i).replace('\n', ' ').trim();
+            if (message.isEmpty() || (message.startsWith("[") && message.endsWith("]"))) {
+                continue; // Join/leave notices carry no conversation
+            }
+            if (message.length() > SUMMARY_LINE_CHARS) {
+                message = message.substring(0, SUMMARY_LINE_CHARS - 3) + "...";
+            }
+            summaryLines.addLast("- " + message);
+            summaryChars += message.length() + 2;
+        }
+
+        int maxChars = summaryTokens * CHARS_PER_TOKEN;
+        Iterator<String> oldest = summaryLines.iterator();
+        while (summaryChars > maxChars && oldest.hasNext()) {
+            summaryChars -= oldest.next().length();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Selects the most recent messages that fit in the token budget. At least
+     * the latest message is always included.
+     */
+    public static List<String> window(List<String> history, int windowTokens) {
+        int tokens = 0;
+        int start = history.size();
+        while (start > 0) {
+            int messageTokens = estimateTokens(history.get(start - 1));
+            if (start < history.size() && tokens + messageTokens > windowTokens) {
+                break;
+            }
+            tokens += messageTokens;
+            start--;
+        }
+        return history.subList(start, history.size());
+    }
+
+    /**
+     * Rough token estimate: about four characters per token for English
+     * text, plus one for the line break.
+     */
+    static int estimateTokens(String message) {
+        return message.length() / CHARS_PER_TOKEN + 1;
+    }
+}
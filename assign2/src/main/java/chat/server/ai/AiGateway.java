@@ -0,0 +1,267 @@
+package chat.server.ai;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Shared entry point for all AI generations on the server. Every AI room goes
+ * through one gateway, which owns the single {@link AiBackend}, caps the
+ * number of concurrent generations and queues the rest fairly: rooms with
+ * pending work are served round-robin, so one busy room cannot starve the
+ * others. When the queue is full new requests are rejected immediately so
+ * rooms can answer with a "bot busy" reply.
+ *
+ * When the backend generates several sequences concurrently, jobs are started
+ * in dispatch cycles: the first job to find a free slot opens a short batch
+ * window, and every job from any room queued by the time it closes is started
+ * together. Requests that arrive together then share the backend's batched
+ * decoding instead of trickling in one at a time.
+ */
+public class AiGateway {
+
+    private final AiBackend backend;
+    private final AiResponseCache responseCache;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long batchWindowMs;
+    private final Executor batchExecutor;
+
+    // Fair queue: one FIFO per room, rooms with pending jobs served in turn
+    private final Map<String, ArrayDeque<Job>> roomQueues = new HashMap<>();
+    private final ArrayDeque<String> roomOrder = new ArrayDeque<>();
+    private final Lock queueLock = new ReentrantLock();
+    private int queued = 0;
+    private int active = 0;
+    private boolean cycleScheduled = false;
+
+    // Metrics
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong totalQueueWaitNanos = new AtomicLong();
+    private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+    private final AtomicLong dispatchCycleCount = new AtomicLong();
+    private final AtomicLong batchedJobCount = new AtomicLong();
+    private final AtomicLong maxBatchSize = new AtomicLong();
+
+    /**
+     * @param backend Backend shared by every AI room
+     * @param responseCache Cache of generated responses shared by every AI room
+     * @param maxConcurrent Maximum number of generations running at once,
+     * further limited by the backend's concurrent sequences
+     * @param maxQueued Maximum number of generations waiting for a slot
+     * @param batchWindowMs How long a dispatch cycle collects jobs before
+     * starting them; 0 starts every job as soon as a slot is free
+     */
+    public AiGateway(AiBackend backend, AiResponseCache responseCache, int maxConcurrent, int maxQueued,
+            long batchWindowMs) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be at least 1");
+        }
+        this.backend = backend;
+        this.responseCache = responseCache;
+        this.maxConcurrent = Math.min(maxConcurrent, Math.max(1, backend.maxConcurrentSequences()));
+        this.maxQueued = Math.max(0, maxQueued);
+        // Batching only pays off when the backend can run sequences side by side
+        this.batchWindowMs = this.maxConcurrent > 1 ? Math.max(0, batchWindowMs) : 0;
+        this.batchExecutor = CompletableFuture.delayedExecutor(this.batchWindowMs, TimeUnit.MILLISECONDS);
+    }
+
+    public AiResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * @return Name of the model that generates responses
+     */
+    public String getModel() {
+        return backend.getModel();
+    }
+
+    private static class Job {
+        final String roomName;
+        final Function<AiBackend, CompletableFuture<Void>> generation;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final long enqueuedAt = System.nanoTime();
+
+        Job(String roomName, Function<AiBackend, CompletableFuture<Void>> generation) {
+            this.roomName = roomName;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Queues a generation for a room. The generation function is invoked once
+     * a slot is free and must return a future that completes when the
+     * generation has ended; the slot is held until then.
+     *
+     * @param roomName Room requesting the generation, used for fair scheduling
+     * @param generation Starts the generation using the shared backend
+     * @return Future that completes when the generation has ended, or fails
+     * with {@link RejectedExecutionException} if the queue is saturated
+     */
+    public CompletableFuture<Void> submit(String roomName, Function<AiBackend, CompletableFuture<Void>> generation) {
+        submittedCount.incrementAndGet();
+        Job job = new Job(roomName, generation);
+
+        queueLock.lock();
+        try {
+            if (active >= maxConcurrent && queued >= maxQueued) {
+                rejectedCount.incrementAndGet();
+                return CompletableFuture.failedFuture(
+                        new RejectedExecutionException("AI queue saturated (" + queued + " waiting)"));
+            }
+
+            ArrayDeque<Job> roomQueue = roomQueues.computeIfAbsent(roomName, k -> new ArrayDeque<>());
+            if (roomQueue.isEmpty()) {
+                roomOrder.addLast(roomName);
+            }
+            roomQueue.addLast(job);
+            queued++;
+        } finally {
+            queueLock.unlock();
+        }
+
+        dispatch();
+        return job.result;
+    }
+
+    /**
+     * Starts queued jobs while slots are free, or opens a dispatch cycle that
+     * will start them together once the batch window closes.
+     */
+    private void dispatch() {
+        if (batchWindowMs == 0) {
+            runDispatchCycle();
+            return;
+        }
+
+        queueLock.lock();
+        try {
+            if (cycleScheduled || active >= maxConcurrent || roomOrder.isEmpty()) {
+                return;
+            }
+            cycleScheduled = true;
+        } finally {
+            queueLock.unlock();
+        }
+
+        batchExecutor.execute(this::runDispatchCycle);
+    }
+
+    /**
+     * Takes one job per room in round-robin order until the slots are full,
+     * then starts the whole batch.
+     */
+    private void runDispatchCycle() {
+        List<Job> batch = new ArrayList<>();
+        queueLock.lock();
+        try {
+            cycleScheduled = false;
+            while (active < maxConcurrent && !roomOrder.isEmpty()) {
+                String roomName = roomOrder.pollFirst();
+                ArrayDeque<Job> roomQueue = roomQueues.get(roomName);
+                batch.add(roomQueue.pollFirst());
+                if (roomQueue.isEmpty()) {
+                    roomQueues.remove(roomName);
+                } else {
+                    roomOrder.addLast(roomName); // Go to the back of the line
+                }
+                queued--;
+                active++;
+            }
+        } finally {
+            queueLock.unlock();
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+        dispatchCycleCount.incrementAndGet();
+        batchedJobCount.addAndGet(batch.size());
+        maxBatchSize.accumulateAndGet(batch.size(), Math::max);
+
+        for (Job job : batch) {
+            start(job);
+        }
+    }
+
+    private void start(Job job) {
+        long waitNanos = System.nanoTime() - job.enqueuedAt;
+        totalQueueWaitNanos.addAndGet(waitNanos);
+        maxQueueWaitNanos.accumulateAndGet(waitNanos, Math::max);
+
+        CompletableFuture<Void> running;
+        try {
+            running = job.generation.apply(backend);
+        } catch (Exception e) {
+            running = CompletableFuture.failedFuture(e);
+        }
+
+        running.whenComplete((result, error) -> {
+            queueLock.lock();
+            try {
+                active--;
+            } finally {
+                queueLock.unlock();
+            }
+            completedCount.incrementAndGet();
+
+            if (error != null) {
+                job.result.completeExceptionally(error);
+            } else {
+                job.result.complete(null);
+            }
+            dispatch();
+        });
+    }
+
+    /**
+     * @return One-line summary of the backend's retry, deadline and circuit
+     * breaker metrics
+     */
+    public String getBackendMetricsSummary() {
+        return backend.getMetricsSummary();
+    }
+
+    /**
+     * @return One-line summary of the gateway's load and queue-wait metrics
+     */
+    public String getMetricsSummary() {
+        int currentActive;
+        int currentQueued;
+        queueLock.lock();
+        try {
+            currentActive = active;
+            currentQueued = queued;
+        } finally {
+            queueLock.unlock();
+        }
+
+        long started = completedCount.get() + currentActive;
+        long avgWaitMs = started > 0 ? totalQueueWaitNanos.get() / started / 1_000_000 : 0;
+        long cycles = dispatchCycleCount.get();
+        String avgBatch = cycles > 0 ? String.format("%.2f", (double) batchedJobCount.get() / cycles) : "0";
+        return "AI gateway: active=" + currentActive + "/" + maxConcurrent
+                + " queued=" + currentQueued + "/" + maxQueued
+                + " submitted=" + submittedCount.get()
+                + " completed=" + completedCount.get()
+                + " rejected=" + rejectedCount.get()
+                + " avgQueueWaitMs=" + avgWaitMs
+                + " maxQueueWaitMs=" + maxQueueWaitNanos.get() / 1_000_000
+                + " cycles=" + cycles
+                + " avgBatch=" + avgBatch
+                + " maxBatch=" + maxBatchSize.get();
+    }
+}
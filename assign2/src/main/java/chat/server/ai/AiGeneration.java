@@ -0,0 +1,60 @@
+package chat.server.ai;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Streaming result of an {@link AiBackend} generation. Text chunks are pushed
+ * by the backend as they are produced; chunks emitted before a listener
+ * subscribes are buffered and replayed, so no output is lost between starting
+ * a generation and subscribing to it.
+ */
+public class AiGeneration {
+
+    private final List<String> pendingTokens = new ArrayList<>();
+    private Consumer<String> tokenListener;
+    private final CompletableFuture<String> completion = new CompletableFuture<>();
+
+    /**
+     * Registers the consumer of streamed text chunks. Chunks already emitted
+     * are delivered first, in order.
+     */
+    public synchronized void subscribe(Consumer<String> listener) {
+        for (String token : pendingTokens) {
+            listener.accept(token);
+        }
+        pendingTokens.clear();
+        tokenListener = listener;
+    }
+
+    /**
+     * @return Future completing with the full response, or exceptionally with
+     * an {@link AiBackendException}
+     */
+    public CompletableFuture<String> completion() {
+        return completion;
+    }
+
+    // --- Called by backends ---
+
+    public synchronized void emit(String token) {
+        if (completion.isDone()) {
+            return;
+        }
+        if (tokenListener == null) {
+            pendingTokens.add(token);
+        } else {
+            tokenListener.accept(token);
+        }
+    }
+
+    public void complete(String response) {
+        completion.complete(response);
+    }
+
+    public void fail(String errorMessage) {
+        completion.completeExceptionally(new AiBackendException(errorMessage));
+    }
+}
@@ -0,0 +1,242 @@
+package chat.server.ai;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded LRU cache of AI responses, shared by all AI rooms. Entries are keyed
+ * by a SHA-256 hash of the model, the room prompt and the normalized context
+ * window, so the same question asked by different people in rooms with the
+ * same prompt is answered without calling the model. Entries expire after a
+ * TTL and the least recently used ones are evicted when the total size
+ * exceeds the byte limit.
+ */
+public class AiResponseCache {
+
+    private final long maxBytes;
+    private final long ttlMillis;
+
+    // Access-ordered map: iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Lock lock = new ReentrantLock();
+    private long currentBytes = 0;
+
+    // Metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private static class Entry {
+        final String response;
+        final String promptHash;
+        final long sizeBytes;
+        final long expiresAt;
+
+        Entry(String response, String promptHash, long sizeBytes, long expiresAt) {
+            this.response = response;
+            this.promptHash = promptHash;
+            this.sizeBytes = sizeBytes;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * @param maxBytes Approximate size limit of all cached entries; 0 disables the cache
+     * @param ttlMillis Time an entry stays valid after it was stored
+     */
+    public AiResponseCache(long maxBytes, long ttlMillis) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.ttlMillis = ttlMillis;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Builds the cache key for a generation request.
+     *
+     * @param model Model that generates the response
+     * @param aiPrompt Room prompt
+     * @param contextWindow Messages sent to the model as context
+     */
+    public String keyFor(String model, String aiPrompt, List<String> contextWindow) {
+        MessageDigest digest = sha256();
+        digest.update(model.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(promptHash(aiPrompt).getBytes(StandardCharsets.UTF_8));
+        for (String message : contextWindow) {
+            String normalized = normalize(message);
+            if (normalized != null) {
+                digest.update((byte) 0);
+                digest.update(normalized.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @return The cached response, or null on a miss or an expired entry
+     */
+    public String get(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+                removeEntry(key);
+                entry = null;
+            }
+
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.response;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores a response, evicting least recently used entries as needed.
+     */
+    public void put(String key, String aiPrompt, String response) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        // Java strings are roughly two bytes per char plus the key itself
+        long sizeBytes = 2L * (response.length() + key.length()) + 64;
+        if (sizeBytes > maxBytes) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            removeEntry(key);
+            entries.put(key, new Entry(response, promptHash(aiPrompt), sizeBytes,
+                    System.currentTimeMillis() + ttlMillis));
+            currentBytes += sizeBytes;
+
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && iterator.hasNext()) {
+                Entry eldest = iterator.next().getValue();
+                iterator.remove();
+                currentBytes -= eldest.sizeBytes;
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops every entry generated for the given room prompt. Called when a
+     * room's prompt changes.
+     */
+    public void invalidatePrompt(String aiPrompt) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        String promptHash = promptHash(aiPrompt);
+        lock.lock();
+        try {
+            List<String> stale = new ArrayList<>();
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (entry.getValue().promptHash.equals(promptHash)) {
+                    stale.add(entry.getKey());
+                }
+            }
+            for (String key : stale) {
+                removeEntry(key);
+                invalidations.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeEntry(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            currentBytes -= removed.sizeBytes;
+        }
+    }
+
+    /**
+     * Normalizes a history line so that equivalent questions share a key:
+     * the speaker prefix is dropped, case and whitespace are folded, and
+     * bracketed room notices (joins, leaves) are ignored.
+     *
+     * @return The normalized line, or null if it should not be part of the key
+     */
+    static String normalize(String message) {
+        String text = message.trim();
+        if (text.startsWith("[") && text.endsWith("]")) {
+            return null;
+        }
+
+        int colon = text.indexOf(": ");
+        if (colon > 0 && text.lastIndexOf(' ', colon - 1) < 0) {
+            text = text.substring(colon + 2);
+        }
+        return text.toLowerCase(Locale.ROOT).replaceAll("\\s+", " ").trim();
+    }
+
+    private static String promptHash(String aiPrompt) {
+        byte[] hash = sha256().digest((aiPrompt == null ? "" : aiPrompt).getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(hash);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * @return One-line summary of the cache's size and hit/miss metrics
+     */
+    public String getMetricsSummary() {
+        int size;
+        long bytes;
+        lock.lock();
+        try {
+            size = entries.size();
+            bytes = currentBytes;
+        } finally {
+            lock.unlock();
+        }
+
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        long hitRatePercent = lookups > 0 ? hitCount * 100 / lookups : 0;
+        return "AI cache: entries=" + size
+                + " bytes=" + bytes + "/" + maxBytes
+                + " hits=" + hitCount
+                + " misses=" + misses.get()
+                + " hitRate=" + hitRatePercent + "%"
+                + " evictions=" + evictions.get()
+                + " invalidations=" + invalidations.get();
+    }
+}
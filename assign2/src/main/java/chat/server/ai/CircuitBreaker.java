@@ -0,0 +1,145 @@
+package chat.server.ai;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Circuit breaker for the AI backend. After a run of consecutive failures the
+ * circuit opens and requests fail fast without touching the network. Once the
+ * open period has passed, a single trial request is let through (half-open):
+ * its success closes the circuit, its failure opens it again.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private final Lock lock = new ReentrantLock();
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private boolean trialInFlight = false;
+
+    // Metrics
+    private final Map<State, AtomicLong> transitionsInto = new EnumMap<>(State.class);
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * @param name Name used in log messages
+     * @param failureThreshold Consecutive failures that open the circuit
+     * @param openMillis Time the circuit stays open before a trial request
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+        for (State s : State.values()) {
+            transitionsInto.put(s, new AtomicLong());
+        }
+    }
+
+    /**
+     * Asks for permission to send a request. Every permitted request must be
+     * followed by {@link #recordSuccess()}, {@link #recordFailure()} or
+     * {@link #recordNeutral()}.
+     *
+     * @return false if the request must fail fast
+     */
+    public boolean allowRequest() {
+        lock.lock();
+        try {
+            if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+                transition(State.HALF_OPEN);
+            }
+
+            if (state == State.CLOSED) {
+                return true;
+            }
+            if (state == State.HALF_OPEN && !trialInFlight) {
+                trialInFlight = true;
+                return true;
+            }
+
+            rejectedCount.incrementAndGet();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recordSuccess() {
+        lock.lock();
+        try {
+            consecutiveFailures = 0;
+            trialInFlight = false;
+            if (state != State.CLOSED) {
+                transition(State.CLOSED);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recordFailure() {
+        lock.lock();
+        try {
+            consecutiveFailures++;
+            trialInFlight = false;
+            if (state == State.HALF_OPEN
+                    || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+                openedAt = System.currentTimeMillis();
+                transition(State.OPEN);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a request that ended with an error unrelated to the backend's
+     * health (e.g. a bad request): neither a success nor a failure. A
+     * half-open circuit lets another trial request through.
+     */
+    public void recordNeutral() {
+        lock.lock();
+        try {
+            trialInFlight = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public State getState() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void transition(State newState) {
+        System.out.println("Circuit breaker " + name + ": " + state + " -> " + newState);
+        state = newState;
+        transitionsInto.get(newState).incrementAndGet();
+    }
+
+    /**
+     * @return One-line summary of the breaker state and transition counts
+     */
+    public String getMetricsSummary() {
+        return "Circuit breaker " + name + ": state=" + getState()
+                + " opened=" + transitionsInto.get(State.OPEN).get()
+                + " halfOpened=" + transitionsInto.get(State.HALF_OPEN).get()
+                + " closed=" + transitionsInto.get(State.CLOSED).get()
+                + " fastFailed=" + rejectedCount.get();
+    }
+}
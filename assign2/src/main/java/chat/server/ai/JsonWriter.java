@@ -0,0 +1,140 @@
+package chat.server.ai;
+
+/**
+ * Minimal single-pass JSON writer used to build AI request payloads. Strings
+ * are escaped character by character while they are appended, instead of
+ * running one replace pass per special character.
+ */
+public class JsonWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final StringBuilder sb;
+    private boolean needsComma = false;
+
+    public JsonWriter(int capacityHint) {
+        this.sb = new StringBuilder(capacityHint);
+    }
+
+    public JsonWriter beginObject() {
+        separator();
+        sb.append('{');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        sb.append('}');
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Starts a nested object field; close it with {@link #endObject()}.
+     */
+    public JsonWriter beginObject(String name) {
+        name(name);
+        sb.append('{');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonWriter field(String name, String value) {
+        name(name);
+        if (value == null) {
+            sb.append("null");
+        } else {
+            appendString(value);
+        }
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Writes a string field whose value is assembled from several parts, so
+     * callers need not concatenate them first.
+     */
+    public JsonWriter field(String name, Iterable<? extends CharSequence> parts, String separator) {
+        name(name);
+        sb.append('"');
+        for (CharSequence part : parts) {
+            appendEscaped(part);
+            appendEscaped(separator);
+        }
+        sb.append('"');
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter field(String name, boolean value) {
+        name(name);
+        sb.append(value);
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter field(String name, long value) {
+        name(name);
+        sb.append(value);
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter field(String name, int[] values) {
+        name(name);
+        sb.append('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(values[i]);
+        }
+        sb.append(']');
+        needsComma = true;
+        return this;
+    }
+
+    private void name(String name) {
+        separator();
+        appendString(name);
+        sb.append(':');
+    }
+
+    private void separator() {
+        if (needsComma) {
+            sb.append(',');
+        }
+    }
+
+    private void appendString(CharSequence value) {
+        sb.append('"');
+        appendEscaped(value);
+        sb.append('"');
+    }
+
+    private void appendEscaped(CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\b': sb.append("\\b"); break;
+                case '\f': sb.append("\\f"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+}
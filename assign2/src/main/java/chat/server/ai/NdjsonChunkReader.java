@@ -0,0 +1,306 @@
+package chat.server.ai;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental reader for the NDJSON stream returned by Ollama's
+ * {@code /api/generate}. Bytes are fed as they arrive from the HTTP body, in
+ * buffers of any size; a JSON object (or a UTF-8 sequence, or an escape) may
+ * be split across buffers. Each complete top-level object is reported to the
+ * {@link ChunkListener} with the fields the AI path uses:
+ * {@code response}, {@code done}, {@code context} and {@code error}.
+ *
+ * The reader is a byte-level state machine: it never builds a line or a
+ * tree, only decodes the strings it reports, and reuses its buffers between
+ * chunks. It is not thread-safe; one reader serves one response body.
+ */
+public class NdjsonChunkReader {
+
+    /**
+     * Receives each complete chunk of the stream.
+     */
+    public interface ChunkListener {
+        /**
+         * @param response Generated text of the chunk, or null if absent
+         * @param done Whether this is the final chunk
+         * @param context Context tokens of the final chunk, or null if absent
+         * @param error Error reported by the server, or null if absent
+         */
+        void onChunk(String response, boolean done, int[] context, String error);
+    }
+
+    private final ChunkListener listener;
+
+    // Structural state
+    private int depth = 0;
+    private boolean expectingKey = false;
+    private String currentKey = null;   // Key of the current top-level field
+
+    // String state
+    private boolean inString = false;
+    private boolean inEscape = false;
+    private int unicodeDigits = -1;     // Remaining hex digits of a unicode escape, -1 if none
+    private int unicodeValue = 0;
+    private int pendingHighSurrogate = -1;
+    private boolean captureString = false;
+    private byte[] stringBytes = new byte[256];
+    private int stringLength = 0;
+
+    // Scalar (number/literal) state
+    private final StringBuilder scalar = new StringBuilder(16);
+
+    // Fields of the object being read
+    private String response;
+    private boolean done;
+    private String error;
+    private int[] context = new int[0];
+    private int contextLength = 0;
+    private boolean hasContext = false;
+
+    public NdjsonChunkReader(ChunkListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Consumes all remaining bytes of the buffer.
+     */
+    public void feed(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            accept(buffer.get());
+        }
+    }
+
+    /**
+     * Consumes a byte array slice.
+     */
+    public void feed(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            accept(bytes[i]);
+        }
+    }
+
+    /**
+     * @return true if the reader stopped in the middle of an object
+     */
+    public boolean hasPartialChunk() {
+        return depth > 0 || inString;
+    }
+
+    private void accept(byte b) {
+        if (inString) {
+            acceptStringByte(b);
+            return;
+        }
+
+        switch (b) {
+            case '{':
+                finishScalar();
+                depth++;
+                if (depth == 1) {
+                    startObject();
+                }
+                break;
+            case '}':
+                finishScalar();
+                depth--;
+                if (depth == 0) {
+                    listener.onChunk(response, done, hasContext ? Arrays.copyOf(context, contextLength) : null, error);
+                } else if (depth < 0) {
+                    depth = 0; // Stray brace; resynchronize on the next object
+                }
+                break;
+            case '[':
+                finishScalar();
+                depth++;
+                break;
+            case ']':
+                finishScalar();
+                depth--;
+                break;
+            case '"':
+                finishScalar();
+                inString = true;
+                stringLength = 0;
+                pendingHighSurrogate = -1;
+                // Only keys and the values we report are decoded
+                captureString = depth == 1 && (expectingKey || "response".equals(currentKey) || "error".equals(currentKey));
+                break;
+            case ':':
+                finishScalar();
+                if (depth == 1) {
+                    expectingKey = false;
+                }
+                break;
+            case ',':
+                finishScalar();
+                if (depth == 1) {
+                    expectingKey = true;
+                }
+                break;
+            case ' ':
+            case '\t':
+            case '\r':
+            case '\n':
+                finishScalar();
+                break;
+            default:
+                if (depth > 0) {
+                    scalar.append((char) (b & 0xff));
+                }
+        }
+    }
+
+    private void startObject() {
+        expectingKey = true;
+        currentKey = null;
+        response = null;
+        done = false;
+        error = null;
+        contextLength = 0;
+        hasContext = false;
+    }
+
+    private void acceptStringByte(byte b) {
+        if (unicodeDigits > 0) {
+            int digit = Character.digit(b, 16);
+            unicodeValue = (unicodeValue << 4) | Math.max(digit, 0);
+            if (--unicodeDigits == 0) {
+                unicodeDigits = -1;
+                appendCodeUnit(unicodeValue);
+            }
+            return;
+        }
+
+        if (inEscape) {
+            inEscape = false;
+            switch (b) {
+                case 'n': appendDecoded('\n'); break;
+                case 't': appendDecoded('\t'); break;
+                case 'r': appendDecoded('\r'); break;
+                case 'b': appendDecoded('\b'); break;
+                case 'f': appendDecoded('\f'); break;
+                case 'u':
+                    unicodeDigits = 4;
+                    unicodeValue = 0;
+                    break;
+                default: appendDecoded(b); // \" \\ \/
+            }
+            return;
+        }
+
+        if (b == '\\') {
+            inEscape = true;
+        } else if (b == '"') {
+            inString = false;
+            flushHighSurrogate();
+            finishString();
+        } else {
+            flushHighSurrogate();
+            appendByte(b);
+        }
+    }
+
+    private void finishString() {
+        if (!captureString || depth != 1) {
+            return;
+        }
+
+        String value = new String(stringBytes, 0, stringLength, StandardCharsets.UTF_8);
+        if (expectingKey) {
+            currentKey = value;
+            if ("context".equals(value)) {
+                hasContext = true;
+            }
+        } else if ("response".equals(currentKey)) {
+            response = value;
+        } else if ("error".equals(currentKey)) {
+            error = value;
+        }
+    }
+
+    private void finishScalar() {
+        if (scalar.length() == 0) {
+            return;
+        }
+
+        if (depth == 1 && "done".equals(currentKey)) {
+            done = scalar.length() == 4 && scalar.charAt(0) == 't';
+        } else if (depth == 2 && "context".equals(currentKey)) {
+            appendContext(scalar);
+        }
+        scalar.setLength(0);
+    }
+
+    private void appendContext(CharSequence number) {
+        try {
+            int token = Integer.parseInt(number, 0, number.length(), 10);
+            if (contextLength == context.length) {
+                context = Arrays.copyOf(context, Math.max(64, context.length * 2));
+            }
+            context[contextLength++] = token;
+        } catch (NumberFormatException e) {
+            // Not a token id; ignore it
+        }
+    }
+
+    // --- String decoding: escapes are written back out as UTF-8 bytes ---
+
+    private void appendDecoded(int c) {
+        flushHighSurrogate();
+        appendByte((byte) c);
+    }
+
+    private void appendCodeUnit(int unit) {
+        if (Character.isHighSurrogate((char) unit)) {
+            flushHighSurrogate();
+            pendingHighSurrogate = unit;
+        } else if (Character.isLowSurrogate((char) unit)) {
+            if (pendingHighSurrogate >= 0) {
+                appendCodePoint(Character.toCodePoint((char) pendingHighSurrogate, (char) unit));
+                pendingHighSurrogate = -1;
+            } else {
+                appendCodePoint(0xFFFD); // Lone low surrogate
+            }
+        } else {
+            flushHighSurrogate();
+            appendCodePoint(unit);
+        }
+    }
+
+    private void flushHighSurrogate() {
+        if (pendingHighSurrogate >= 0) {
+            pendingHighSurrogate = -1;
+            appendCodePoint(0xFFFD); // High surrogate without its pair
+        }
+    }
+
+    private void appendCodePoint(int cp) {
+        if (cp < 0x80) {
+            appendByte((byte) cp);
+        } else if (cp < 0x800) {
+            appendByte((byte) (0xC0 | (cp >> 6)));
+            appendByte((byte) (0x80 | (cp & 0x3F)));
+        } else if (cp < 0x10000) {
+            appendByte((byte) (0xE0 | (cp >> 12)));
+            appendByte((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            appendByte((byte) (0x80 | (cp & 0x3F)));
+        } else {
+            appendByte((byte) (0xF0 | (cp >> 18)));
+            appendByte((byte) (0x80 | ((cp >> 12) & 0x3F)));
+            appendByte((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            appendByte((byte) (0x80 | (cp & 0x3F)));
+        }
+    }
+
+    private void appendByte(byte b) {
+        if (!captureString) {
+            return;
+        }
+        if (stringLength == stringBytes.length) {
+            stringBytes = Arrays.copyOf(stringBytes, stringBytes.length * 2);
+        }
+        stringBytes[stringLength++] = b;
+    }
+}
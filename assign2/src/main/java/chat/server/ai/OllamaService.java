@@ -1,23 +1,57 @@
 package chat.server.ai;
 
+import java.io.ByteArrayOutputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
-public class OllamaService {
+/**
+ * {@link AiBackend} for a local Ollama server's {@code /api/generate} API.
+ */
+public class OllamaService implements AiBackend {
 
-    private static final String DEFAULT_OLLAMA_URL = "http://localhost:11434/api/generate";
-    private static final String DEFAULT_MODEL = "llama3";
+    public static final String DEFAULT_OLLAMA_URL = "http://localhost:11434/api/generate";
+    public static final String DEFAULT_MODEL = "llama3";
     private static final int DEFAULT_TIMEOUT_SECONDS = 30;
 
+    // Sequences Ollama generates in parallel; keep in line with OLLAMA_NUM_PARALLEL
+    private static final int PARALLEL_SEQUENCES = Integer.getInteger("chat.ai.parallel", 4);
+
+    // Deadline of a single attempt, from sending the request to the last chunk
+    private static final long REQUEST_DEADLINE_MS = TimeUnit.SECONDS.toMillis(Long.getLong("chat.ai.deadlineSeconds", 60));
+    // Retries of transient failures that happen before any text was streamed
+    private static final int MAX_RETRIES = Integer.getInteger("chat.ai.maxRetries", 2);
+    private static final long RETRY_BASE_BACKOFF_MS = 250;
+    private static final long RETRY_MAX_BACKOFF_MS = 5000;
+    // Circuit breaker: consecutive failures that open it, and how long it stays open
+    private static final int BREAKER_FAILURE_THRESHOLD = Integer.getInteger("chat.ai.breaker.failureThreshold", 5);
+    private static final long BREAKER_OPEN_SECONDS = Long.getLong("chat.ai.breaker.openSeconds", 15);
+
     private final String ollamaUrl;
     private final String model;
     private final HttpClient httpClient;
+    private final CircuitBreaker circuitBreaker;
+
+    // Metrics
+    private final AtomicLong attemptCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong deadlineExceededCount = new AtomicLong();
 
     public OllamaService() {
         this(DEFAULT_OLLAMA_URL, DEFAULT_MODEL);
@@ -29,117 +63,390 @@ public class OllamaService {
         this.httpClient = HttpClient.newBuilder()
                 .connectTimeout(Duration.ofSeconds(DEFAULT_TIMEOUT_SECONDS))
                 .build();
+        this.circuitBreaker = new CircuitBreaker("ollama", BREAKER_FAILURE_THRESHOLD,
+                TimeUnit.SECONDS.toMillis(BREAKER_OPEN_SECONDS));
+    }
+
+    @Override
+    public String getModel() {
+        return model;
+    }
+
+    @Override
+    public int maxConcurrentSequences() {
+        return PARALLEL_SEQUENCES;
+    }
+
+    @Override
+    public AiGeneration generate(AiConversation.Turn turn) {
+        AiGeneration generation = new AiGeneration();
+        streamTurn(turn, generation::emit, generation::complete, generation::fail);
+        return generation;
     }
 
     /**
-     * Asynchronously generates a response from the AI model based on the given
-     * prompt and message history.
+     * Asynchronously runs one conversation turn, delivering each chunk of
+     * generated text as soon as Ollama streams it. Ollama answers with one
+     * JSON object per line (NDJSON); the body bytes are fed to an incremental
+     * {@link NdjsonChunkReader} as they arrive instead of being buffered
+     * until the model has finished. The context returned with the final
+     * chunk is recorded in the turn's conversation before onComplete runs.
      *
-     * @param basePrompt The initial system prompt/instruction for the AI
-     * @param messageHistory Recent conversation messages (can be empty)
-     * @param onSuccess Consumer that receives the AI response
+     * @param turn Prompt and optional context, see {@link AiConversation#nextTurn}
+     * @param onToken Consumer that receives each generated text chunk
+     * @param onComplete Consumer that receives the full assembled response
      * @param onError Consumer that receives any error message
-     * @return CompletableFuture that completes when the response is received
+     * @return CompletableFuture that completes when the stream has ended
      */
-    public CompletableFuture<Void> generateResponse(String basePrompt,
-            List<String> messageHistory,
-            Consumer<String> onSuccess,
+    private CompletableFuture<Void> streamTurn(AiConversation.Turn turn,
+            Consumer<String> onToken,
+            Consumer<String> onComplete,
             Consumer<String> onError) {
+        ResponseStream stream = new ResponseStream(turn, onToken, onComplete, onError);
         try {
-            // Format the prompt by combining the base prompt and message history
-            StringBuilder fullPrompt = new StringBuilder();
-            fullPrompt.append(basePrompt).append("\n\n");
-
-            // Add message history (limited to the last 10 messages for context)
-            int startIndex = Math.max(0, messageHistory.size() - 10);
-            for (int i = startIndex; i < messageHistory.size(); i++) {
-                fullPrompt.append(messageHistory.get(i)).append("\n");
-            }
-
-            // Create the request payload
-            String payload = String.format("{\"model\": \"%s\", \"prompt\": \"%s\"}",
-                    model,
-                    escapeJson(fullPrompt.toString()));
-
-            // Create HTTP request
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(ollamaUrl))
-                    .header("Content-Type", "application/json")
-                    .POST(HttpRequest.BodyPublishers.ofString(payload))
-                    .build();
-
-            // Send the async request and handle the response
-            return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
-                    .thenAccept(response -> {
-                        if (response.statusCode() >= 200 && response.statusCode() < 300) {
-                            // Parse the response
-                            String responseBody = response.body();
-                            String aiResponse = parseOllamaResponse(responseBody);
-                            onSuccess.accept(aiResponse);
-                        } else {
-                            onError.accept("Error from Ollama API: " + response.statusCode() + " - " + response.body());
-                        }
-                    })
-                    .exceptionally(e -> {
-                        onError.accept("Exception while calling Ollama API: " + e.getMessage());
-                        return null;
-                    });
+            startAttempt(stream, buildPayload(turn), 1);
         } catch (Exception e) {
-            onError.accept("Error preparing Ollama request: " + e.getMessage());
-            return CompletableFuture.completedFuture(null);
+            stream.fail("Error preparing Ollama request: " + e.getMessage());
         }
+        return stream.result;
     }
 
     /**
-     * Parses the Ollama API response to extract the generated text. Ollama API
-     * returns each chunk of generated text as a JSON object, and we need to
-     * collect the complete response.
+     * Sends one attempt of a request, unless the circuit breaker is open.
      */
-    private String parseOllamaResponse(String responseBody) {
-        StringBuilder fullResponse = new StringBuilder();
-
-        // The response might have multiple lines of JSON
-        String[] lines = responseBody.split("\\n");
-
-        for (String line : lines) {
-            // Process each line that contains a response
-            if (line.contains("\"response\":")) {
-                try {
-                    // Extract the text between quotes after "response":
-                    int startIndex = line.indexOf("\"response\":\"") + "\"response\":\"".length();
-                    int endIndex = line.indexOf("\"", startIndex);
-
-                    if (endIndex > startIndex) {
-                        String chunk = line.substring(startIndex, endIndex)
-                                .replace("\\n", "\n")
-                                .replace("\\\"", "\"")
-                                .replace("\\\\", "\\");
-                        fullResponse.append(chunk);
-                    }
-                } catch (Exception e) {
-                    System.err.println("Error parsing Ollama response chunk: " + e.getMessage());
-                }
+    private void startAttempt(ResponseStream stream, String payload, int attemptNumber) {
+        if (!circuitBreaker.allowRequest()) {
+            stream.fail("AI backend unavailable: circuit breaker is open");
+            return;
+        }
+        attemptCount.incrementAndGet();
+
+        // Create HTTP request; the timeout bounds the wait for response headers
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(ollamaUrl))
+                .timeout(Duration.ofMillis(REQUEST_DEADLINE_MS))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(payload))
+                .build();
+
+        Attempt attempt = new Attempt(stream, payload, attemptNumber);
+
+        // Send the async request and process the body as it arrives
+        attempt.exchange = httpClient.sendAsync(request,
+                responseInfo -> new StreamingBodySubscriber(responseInfo.statusCode(), attempt));
+        attempt.exchange.whenComplete((response, error) -> {
+            if (error == null) {
+                return;
+            }
+
+            Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error;
+            if (cause instanceof HttpTimeoutException && !(cause instanceof HttpConnectTimeoutException)) {
+                // No response headers before the deadline
+                attempt.deadlineExceeded();
+            } else {
+                attempt.fail("Exception while calling Ollama API: " + cause, true, true);
+            }
+        });
+
+        // The deadline covers the whole attempt, including the streamed body,
+        // so a model that hangs mid-response cannot hold the request open
+        CompletableFuture.delayedExecutor(REQUEST_DEADLINE_MS, TimeUnit.MILLISECONDS)
+                .execute(attempt::deadlineExceeded);
+    }
+
+    /**
+     * Full-jitter exponential backoff: a random delay up to base * 2^(n-1).
+     */
+    private static long backoffMillis(int attemptNumber) {
+        long ceiling = Math.min(RETRY_MAX_BACKOFF_MS, RETRY_BASE_BACKOFF_MS << Math.min(attemptNumber - 1, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Builds the request payload in a single pass: the prompt lines of the
+     * turn joined by newlines, plus the context when the turn continues a
+     * conversation.
+     */
+    private String buildPayload(AiConversation.Turn turn) {
+        int sizeHint = 64 + model.length();
+        for (String part : turn.getPromptParts()) {
+            sizeHint += part.length() + 1;
+        }
+        if (turn.reusesContext()) {
+            sizeHint += turn.getContext().length * 7;
+        }
+
+        JsonWriter json = new JsonWriter(sizeHint)
+                .beginObject()
+                .field("model", model)
+                .field("prompt", turn.getPromptParts(), "\n")
+                .field("stream", true);
+        if (turn.reusesContext()) {
+            json.field("context", turn.getContext());
+        }
+        return json.endObject().toString();
+    }
+
+    /**
+     * Delivers the outcome of one generation to its callbacks, making sure
+     * exactly one of onComplete/onError is called however the stream ends,
+     * across all attempts.
+     */
+    private static class ResponseStream {
+
+        private final AiConversation.Turn turn;
+        private final Consumer<String> onToken;
+        private final Consumer<String> onComplete;
+        private final Consumer<String> onError;
+        private final StringBuilder fullResponse = new StringBuilder();
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        ResponseStream(AiConversation.Turn turn, Consumer<String> onToken,
+                Consumer<String> onComplete, Consumer<String> onError) {
+            this.turn = turn;
+            this.onToken = onToken;
+            this.onComplete = onComplete;
+            this.onError = onError;
+        }
+
+        /**
+         * @return true once any text was forwarded; the request can then no
+         * longer be retried without duplicating output
+         */
+        boolean hasTokens() {
+            return fullResponse.length() > 0;
+        }
+
+        void token(String response) {
+            if (finished.get()) {
+                return;
+            }
+
+            // Drop leading whitespace the model emits before the first word
+            String chunk = fullResponse.length() == 0 ? response.stripLeading() : response;
+            if (!chunk.isEmpty()) {
+                fullResponse.append(chunk);
+                onToken.accept(chunk);
             }
         }
 
-        String result = fullResponse.toString().trim();
+        void complete(int[] context) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+
+            turn.complete(context);
+            String text = fullResponse.toString().trim();
 
-        // Check if we have a reasonable response
-        if (result.isEmpty() || result.length() < 5) {
-            return "I apologize, but I couldn't generate a proper response to your query. Please try again.";
+            // Check if we have a reasonable response
+            if (text.isEmpty()) {
+                String fallback = "I apologize, but I couldn't generate a proper response to your query. Please try again.";
+                onToken.accept(fallback);
+                text = fallback;
+            }
+
+            try {
+                onComplete.accept(text);
+            } finally {
+                result.complete(null);
+            }
         }
 
-        return result;
+        void fail(String errorMessage) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                onError.accept(errorMessage);
+            } finally {
+                result.complete(null);
+            }
+        }
+    }
+
+    /**
+     * One HTTP exchange for a request. Decides, when it ends, whether the
+     * request succeeded, failed for good, or is retried after a backoff.
+     */
+    private class Attempt implements NdjsonChunkReader.ChunkListener {
+
+        private final ResponseStream stream;
+        private final String payload;
+        private final int number;
+        private final AtomicBoolean ended = new AtomicBoolean(false);
+        private volatile CompletableFuture<HttpResponse<Void>> exchange;
+        private volatile Flow.Subscription subscription;
+
+        Attempt(ResponseStream stream, String payload, int number) {
+            this.stream = stream;
+            this.payload = payload;
+            this.number = number;
+        }
+
+        @Override
+        public void onChunk(String response, boolean done, int[] context, String error) {
+            if (ended.get()) {
+                return;
+            }
+
+            if (error != null) {
+                // The backend answered, so its error says nothing about its health
+                fail("Error from Ollama API: " + error, false, false);
+                return;
+            }
+
+            if (response != null && !response.isEmpty()) {
+                stream.token(response);
+            }
+
+            if (done) {
+                succeed(context);
+            }
+        }
+
+        void succeed(int[] context) {
+            if (ended.compareAndSet(false, true)) {
+                circuitBreaker.recordSuccess();
+                stream.complete(context);
+            }
+        }
+
+        void deadlineExceeded() {
+            if (!ended.get()) {
+                deadlineExceededCount.incrementAndGet();
+                // A hung model is not retried: another attempt would most likely hang too
+                fail("Ollama request exceeded the " + REQUEST_DEADLINE_MS + " ms deadline", false, true);
+            }
+        }
+
+        /**
+         * @param message Error description
+         * @param retryable Whether the failure is transient (connection
+         * errors, overload responses)
+         * @param unhealthy Whether the failure counts against the backend's health
+         */
+        void fail(String message, boolean retryable, boolean unhealthy) {
+            if (!ended.compareAndSet(false, true)) {
+                return;
+            }
+
+            // Release the connection
+            Flow.Subscription current = subscription;
+            if (current != null) {
+                current.cancel();
+            }
+            CompletableFuture<HttpResponse<Void>> currentExchange = exchange;
+            if (currentExchange != null) {
+                currentExchange.cancel(true);
+            }
+
+            // Request errors leave the breaker's failure count as it was
+            if (unhealthy) {
+                circuitBreaker.recordFailure();
+            } else {
+                circuitBreaker.recordNeutral();
+            }
+
+            // Only retry while nothing was streamed, so members never see duplicate text
+            if (retryable && !stream.hasTokens() && number <= MAX_RETRIES) {
+                retryCount.incrementAndGet();
+                long delay = backoffMillis(number);
+                System.err.println("Ollama attempt " + number + " failed (" + message + "), retrying in " + delay + " ms");
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+                        .execute(() -> startAttempt(stream, payload, number + 1));
+            } else {
+                stream.fail(message);
+            }
+        }
+    }
+
+    /**
+     * Receives the response body as raw byte buffers. Successful bodies are
+     * fed to the NDJSON reader as they arrive; error bodies are collected (up
+     * to a limit) and reported once complete.
+     */
+    private static class StreamingBodySubscriber implements HttpResponse.BodySubscriber<Void> {
+
+        private static final int MAX_ERROR_BODY = 4096;
+
+        private final int statusCode;
+        private final Attempt attempt;
+        private final NdjsonChunkReader reader;
+        private final ByteArrayOutputStream errorBody = new ByteArrayOutputStream();
+        private final CompletableFuture<Void> body = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+
+        StreamingBodySubscriber(int statusCode, Attempt attempt) {
+            this.statusCode = statusCode;
+            this.attempt = attempt;
+            this.reader = new NdjsonChunkReader(attempt);
+        }
+
+        private boolean isSuccess() {
+            return statusCode >= 200 && statusCode < 300;
+        }
+
+        @Override
+        public CompletionStage<Void> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            attempt.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            for (ByteBuffer buffer : buffers) {
+                if (isSuccess()) {
+                    reader.feed(buffer);
+                } else if (errorBody.size() < MAX_ERROR_BODY) {
+                    byte[] bytes = new byte[Math.min(buffer.remaining(), MAX_ERROR_BODY - errorBody.size())];
+                    buffer.get(bytes);
+                    errorBody.write(bytes, 0, bytes.length);
+                }
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            attempt.fail("Exception while streaming Ollama response: " + throwable.getMessage(), true, true);
+            body.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (!isSuccess()) {
+                // Overload and gateway errors are transient; other statuses are request errors
+                boolean transientStatus = statusCode == 429 || statusCode >= 500;
+                attempt.fail("Error from Ollama API: " + statusCode + " - "
+                        + errorBody.toString(StandardCharsets.UTF_8), transientStatus, transientStatus);
+            } else if (reader.hasPartialChunk()) {
+                attempt.fail("Ollama response ended in the middle of a chunk", false, true);
+            } else {
+                // Stream ended without a final "done" chunk; keep what was generated
+                attempt.succeed(null);
+            }
+            body.complete(null);
+        }
     }
 
     /**
-     * Escapes special characters in the prompt for JSON inclusion
+     * @return One-line summary of request, retry and deadline counts plus the
+     * circuit breaker state
      */
-    private String escapeJson(String text) {
-        return text.replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace("\n", "\\n")
-                .replace("\r", "\\r")
-                .replace("\t", "\\t");
+    @Override
+    public String getMetricsSummary() {
+        return "Ollama: attempts=" + attemptCount.get()
+                + " retries=" + retryCount.get()
+                + " deadlineExceeded=" + deadlineExceededCount.get()
+                + " | " + circuitBreaker.getMetricsSummary();
     }
 }
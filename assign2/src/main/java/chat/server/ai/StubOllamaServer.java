@@ -0,0 +1,271 @@
+package chat.server.ai;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for Ollama's {@code /api/generate} endpoint, for latency and
+ * load testing of AI rooms without a real model. Every request is answered
+ * with a scripted response streamed as NDJSON, at a configurable token rate
+ * and first-token delay. A configurable share of requests fails with an HTTP
+ * 500 or hangs without answering, to exercise retries, deadlines and the
+ * circuit breaker. With a fixed seed, runs are reproducible.
+ *
+ * Usage: {@code java chat.server.ai.StubOllamaServer [options]}
+ * <pre>
+ * --port N                 Port to listen on (default 11435)
+ * --tokens-per-second N    Streaming rate (default 50)
+ * --first-token-ms N       Delay before the first chunk (default 200)
+ * --tokens N               Chunks per response (default 40)
+ * --error-rate P           Share of requests answered with HTTP 500 (default 0)
+ * --hang-rate P            Share of requests that never answer (default 0)
+ * --script FILE            Text to stream instead of the built-in script
+ * --seed N                 Random seed (default 42)
+ * </pre>
+ * Point the chat server at it with
+ * {@code -Dchat.ai.url=http://localhost:11435/api/generate}.
+ */
+public class StubOllamaServer {
+
+    private static final String DEFAULT_SCRIPT = "This is a scripted reply from the stub AI backend. "
+            + "It streams words at a fixed rate so that the latency of AI rooms can be measured "
+            + "without running a real model. Every request receives the same text, split into "
+            + "chunks the way Ollama streams tokens.";
+    private static final Pattern CHUNK_PATTERN = Pattern.compile("\\s*\\S+");
+    private static final Pattern MODEL_PATTERN = Pattern.compile("\"model\"\\s*:\\s*\"([^\"]*)\"");
+
+    private final int port;
+    private final double tokensPerSecond;
+    private final long firstTokenMillis;
+    private final int tokensPerResponse;
+    private final double errorRate;
+    private final double hangRate;
+    private final List<String> scriptChunks;
+    private final Random random;
+    private HttpServer httpServer;
+
+    // Metrics
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong hangCount = new AtomicLong();
+
+    public StubOllamaServer(int port, double tokensPerSecond, long firstTokenMillis, int tokensPerResponse,
+            double errorRate, double hangRate, String script, long seed) {
+        this.port = port;
+        this.tokensPerSecond = tokensPerSecond;
+        this.firstTokenMillis = firstTokenMillis;
+        this.tokensPerResponse = Math.max(1, tokensPerResponse);
+        this.errorRate = errorRate;
+        this.hangRate = hangRate;
+        this.random = new Random(seed);
+
+        this.scriptChunks = new ArrayList<>();
+        Matcher matcher = CHUNK_PATTERN.matcher(script);
+        while (matcher.find()) {
+            scriptChunks.add(matcher.group());
+        }
+        if (scriptChunks.isEmpty()) {
+            scriptChunks.add("OK");
+        }
+    }
+
+    public void start() throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext("/api/generate", this::handleGenerate);
+        httpServer.createContext("/api/tags", this::handleTags);
+        // One virtual thread per request, so slow streams and hangs cost nothing
+        httpServer.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        httpServer.start();
+        System.out.println("Stub AI backend listening on http://localhost:" + port + "/api/generate");
+    }
+
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+    }
+
+    private void handleTags(HttpExchange exchange) throws IOException {
+        byte[] body = "{\"models\":[{\"name\":\"stub\"}]}".getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private void handleGenerate(HttpExchange exchange) throws IOException {
+        long requestNumber = requestCount.incrementAndGet();
+        String model = "stub";
+        try (InputStream in = exchange.getRequestBody()) {
+            Matcher matcher = MODEL_PATTERN.matcher(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            if (matcher.find()) {
+                model = matcher.group(1);
+            }
+        }
+
+        double roll;
+        synchronized (random) {
+            roll = random.nextDouble();
+        }
+
+        try {
+            if (roll < hangRate) {
+                // Hang: keep the connection open without ever answering
+                hangCount.incrementAndGet();
+                Thread.sleep(TimeUnit.HOURS.toMillis(1));
+                return;
+            }
+
+            if (roll < hangRate + errorRate) {
+                errorCount.incrementAndGet();
+                byte[] body = "{\"error\":\"stub backend: injected failure\"}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(500, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+                return;
+            }
+
+            streamResponse(exchange, model, requestNumber);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // Client went away (e.g. deadline exceeded); nothing to do
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void streamResponse(HttpExchange exchange, String model, long requestNumber)
+            throws IOException, InterruptedException {
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+        exchange.sendResponseHeaders(200, 0); // Chunked
+        long tokenIntervalNanos = tokensPerSecond > 0 ? (long) (1_000_000_000L / tokensPerSecond) : 0;
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            Thread.sleep(firstTokenMillis);
+            long next = System.nanoTime();
+
+            for (int i = 0; i < tokensPerResponse; i++) {
+                String chunk = scriptChunks.get(i % scriptChunks.size());
+                writeLine(out, new JsonWriter(96)
+                        .beginObject()
+                        .field("model", model)
+                        .field("response", chunk)
+                        .field("done", false)
+                        .endObject());
+
+                next += tokenIntervalNanos;
+                long sleepNanos = next - System.nanoTime();
+                if (sleepNanos > 0 && i < tokensPerResponse - 1) {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+            }
+
+            writeLine(out, new JsonWriter(96)
+                    .beginObject()
+                    .field("model", model)
+                    .field("response", "")
+                    .field("done", true)
+                    .field("context", new int[] {(int) requestNumber, tokensPerResponse})
+                    .endObject());
+        }
+    }
+
+    private static void writeLine(OutputStream out, JsonWriter json) throws IOException {
+        out.write((json + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * @return One-line summary of the requests served
+     */
+    public String getMetricsSummary() {
+        return "Stub AI backend: requests=" + requestCount.get()
+                + " errors=" + errorCount.get()
+                + " hangs=" + hangCount.get();
+    }
+
+    public static void main(String[] args) {
+        int port = 11435;
+        double tokensPerSecond = 50;
+        long firstTokenMillis = 200;
+        int tokens = 40;
+        double errorRate = 0;
+        double hangRate = 0;
+        String script = DEFAULT_SCRIPT;
+        long seed = 42;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String value = i + 1 < args.length ? args[i + 1] : null;
+                switch (args[i]) {
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--tokens-per-second":
+                        tokensPerSecond = Double.parseDouble(value);
+                        break;
+                    case "--first-token-ms":
+                        firstTokenMillis = Long.parseLong(value);
+                        break;
+                    case "--tokens":
+                        tokens = Integer.parseInt(value);
+                        break;
+                    case "--error-rate":
+                        errorRate = Double.parseDouble(value);
+                        break;
+                    case "--hang-rate":
+                        hangRate = Double.parseDouble(value);
+                        break;
+                    case "--script":
+                        script = Files.readString(Paths.get(value));
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(value);
+                        break;
+                    default:
+                        System.err.println("Unknown option: " + args[i]);
+                        System.exit(1);
+                }
+                i++;
+            }
+
+            StubOllamaServer stub = new StubOllamaServer(port, tokensPerSecond, firstTokenMillis, tokens,
+                    errorRate, hangRate, script, seed);
+            stub.start();
+            System.out.println("tokens/s=" + tokensPerSecond + " firstTokenMs=" + firstTokenMillis
+                    + " tokens=" + tokens + " errorRate=" + errorRate + " hangRate=" + hangRate + " seed=" + seed);
+
+            // Report served requests periodically until killed
+            while (true) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                System.out.println(stub.getMetricsSummary());
+            }
+        } catch (NumberFormatException | NullPointerException e) {
+            System.err.println("Invalid option value: " + e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Could not start stub AI backend: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
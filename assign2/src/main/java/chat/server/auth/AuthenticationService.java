@@ -1,8 +1,7 @@
 package chat.server.auth;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Map;
 import java.util.HashMap;
@@ -11,56 +10,35 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class AuthenticationService {
 
-    private final Map<String, String> userCredentials = new HashMap<>();
-    private final ReadWriteLock credentialsLock = new ReentrantReadWriteLock();
+    private final CredentialStore credentialStore;
     private final Map<String, Boolean> loggedInUsers = new HashMap<>();
     private final ReadWriteLock loggedInUsersLock = new ReentrantReadWriteLock();
 
     /**
      * Creates a new authentication service and loads users from the specified
-     * file.
+     * file. The file may either be a text file in format username:password or
+     * a binary credential file produced by {@link CredentialFileConverter},
+     * which is memory-mapped instead of loaded.
      *
-     * @param userFilePath Path to the file containing user credentials in
-     * format username:password
+     * @param userFilePath Path to the file containing user credentials
      * @throws IOException If the file cannot be read
      */
     public AuthenticationService(String userFilePath) throws IOException {
-        loadUsers(userFilePath);
+        this.credentialStore = openCredentialStore(Paths.get(userFilePath));
+        System.out.println("Loaded " + credentialStore.size() + " user(s) from " + userFilePath);
     }
 
     /**
-     * Loads user credentials from a file.
+     * Opens the credential store matching the format of the given file.
      *
      * @param filePath Path to the file containing user credentials
      * @throws IOException If the file cannot be read
      */
-    private void loadUsers(String filePath) throws IOException {
-        try (BufferedReader reader = Files.newBufferedReader(Paths.get(filePath))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty() || line.startsWith("#")) {
-                    continue; // Skip empty lines and comments
-                }
-
-                String[] parts = line.split(":", 2);
-                if (parts.length == 2) {
-                    credentialsLock.writeLock().lock();
-                    try {
-                        userCredentials.put(parts[0], parts[1]);
-                    } finally {
-                        credentialsLock.writeLock().unlock();
-                    }
-                }
-            }
-        }
-
-        credentialsLock.readLock().lock();
-        try {
-            System.out.println("Loaded " + userCredentials.size() + " user(s) from " + filePath);
-        } finally {
-            credentialsLock.readLock().unlock();
+    private static CredentialStore openCredentialStore(Path filePath) throws IOException {
+        if (MappedCredentialStore.isCredentialFile(filePath)) {
+            return new MappedCredentialStore(filePath);
         }
+        return new TextCredentialStore(filePath);
     }
 
     /**
@@ -72,14 +50,7 @@ public class AuthenticationService {
      */
     public boolean authenticate(String username, String password) {
         // Check if user exists and password matches
-        credentialsLock.readLock().lock();
-        boolean credentialsMatch;
-        try {
-            credentialsMatch = userCredentials.containsKey(username)
-                    && userCredentials.get(username).equals(password);
-        } finally {
-            credentialsLock.readLock().unlock();
-        }
+        boolean credentialsMatch = credentialStore.matches(username, password);
 
         if (credentialsMatch) {
             // Check if user is already logged in
@@ -130,11 +101,6 @@ public class AuthenticationService {
      * @return true if the user exists, false otherwise
      */
     public boolean userExists(String username) {
-        credentialsLock.readLock().lock();
-        try {
-            return userCredentials.containsKey(username);
-        } finally {
-            credentialsLock.readLock().unlock();
-        }
+        return credentialStore.contains(username);
     }
 }
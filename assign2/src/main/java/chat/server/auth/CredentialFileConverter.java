@@ -0,0 +1,150 @@
+package chat.server.auth;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts a text {@code username:password} users file into the binary
+ * format read by {@link MappedCredentialStore}.
+ *
+ * Usage: {@code java chat.server.auth.CredentialFileConverter <users.txt> <users.db>}
+ */
+public class CredentialFileConverter {
+
+    private static final int MAX_FIELD_LENGTH = 0xFFFF;
+
+    private CredentialFileConverter() {
+    }
+
+    /**
+     * Reads the text file and writes the binary credential file. Later
+     * entries for the same username replace earlier ones, matching the text
+     * loader. The output is written to a temporary file and moved into
+     * place, so a running server never maps a half-written file.
+     *
+     * @return Number of users written
+     * @throws IOException If reading or writing fails, or an entry is too
+     * large for the format
+     */
+    public static int convert(Path textFile, Path binaryFile) throws IOException {
+        Map<String, String> credentials = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(textFile)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] entry = TextCredentialStore.parseLine(line);
+                if (entry != null) {
+                    credentials.put(entry[0], entry[1]);
+                }
+            }
+        }
+
+        List<byte[]> usernames = new ArrayList<>(credentials.size());
+        List<byte[]> passwords = new ArrayList<>(credentials.size());
+        for (Map.Entry<String, String> entry : credentials.entrySet()) {
+            usernames.add(checkLength(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getKey()));
+            passwords.add(checkLength(entry.getValue().getBytes(StandardCharsets.UTF_8), entry.getKey()));
+        }
+
+        int entryCount = usernames.size();
+        int slotCount = slotCountFor(entryCount);
+        long dataOffset = MappedCredentialStore.HEADER_SIZE + (long) slotCount * MappedCredentialStore.SLOT_SIZE;
+
+        // First pass: place every entry in the slot table
+        int[] slotHashes = new int[slotCount];
+        int[] slotOffsets = new int[slotCount];
+        long offset = dataOffset;
+        for (int i = 0; i < entryCount; i++) {
+            if (offset > Integer.MAX_VALUE) {
+                throw new IOException("Credential file would exceed 2 GB; split the user directory");
+            }
+            byte[] username = usernames.get(i);
+            int hash = MappedCredentialStore.hash(username);
+            int index = hash & (slotCount - 1);
+            while (slotOffsets[index] != 0) {
+                index = (index + 1) & (slotCount - 1);
+            }
+            slotHashes[index] = hash;
+            slotOffsets[index] = (int) offset;
+            offset += 4L + username.length + passwords.get(i).length;
+        }
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("Credential file would exceed 2 GB; split the user directory");
+        }
+
+        // Second pass: write header, slots and entries sequentially
+        Path tempFile = binaryFile.resolveSibling(binaryFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MappedCredentialStore.MAGIC);
+            out.writeInt(MappedCredentialStore.VERSION);
+            out.writeInt(entryCount);
+            out.writeInt(slotCount);
+            for (int i = 0; i < slotCount; i++) {
+                out.writeInt(slotHashes[i]);
+                out.writeInt(slotOffsets[i]);
+            }
+            for (int i = 0; i < entryCount; i++) {
+                writeField(out, usernames.get(i));
+                writeField(out, passwords.get(i));
+            }
+        }
+        Files.move(tempFile, binaryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return entryCount;
+    }
+
+    /**
+     * Power-of-two slot count that keeps the load factor at or below 0.5.
+     */
+    private static int slotCountFor(int entryCount) throws IOException {
+        long wanted = Math.max(2L, (long) entryCount * 2);
+        long slots = Long.highestOneBit(wanted - 1) << 1;
+        if (slots > (1 << 27)) {
+            throw new IOException("Too many users for a single credential file: " + entryCount);
+        }
+        return (int) slots;
+    }
+
+    private static byte[] checkLength(byte[] field, String username) throws IOException {
+        if (field.length > MAX_FIELD_LENGTH) {
+            throw new IOException("Credential entry too long for user: " + username);
+        }
+        return field;
+    }
+
+    private static void writeField(DataOutputStream out, byte[] field) throws IOException {
+        out.writeShort(field.length);
+        out.write(field);
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: java chat.server.auth.CredentialFileConverter <users.txt> <users.db>");
+            System.exit(1);
+        }
+
+        Path textFile = Paths.get(args[0]);
+        Path binaryFile = Paths.get(args[1]);
+        try {
+            long start = System.nanoTime();
+            int count = convert(textFile, binaryFile);
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("Converted " + count + " user(s) from " + textFile + " to " + binaryFile
+                    + " in " + elapsedMs + " ms");
+        } catch (IOException e) {
+            System.err.println("Conversion failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
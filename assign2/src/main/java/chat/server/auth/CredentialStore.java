@@ -0,0 +1,29 @@
+package chat.server.auth;
+
+/**
+ * Read-only lookup of user credentials used by {@link AuthenticationService}.
+ */
+public interface CredentialStore {
+
+    /**
+     * Checks whether the given password matches the one stored for the user.
+     *
+     * @param username The username
+     * @param password The password supplied by the client
+     * @return true if the user exists and the password matches
+     */
+    boolean matches(String username, String password);
+
+    /**
+     * Checks if a user exists in the store.
+     *
+     * @param username The username to check
+     * @return true if the user exists, false otherwise
+     */
+    boolean contains(String username);
+
+    /**
+     * @return Number of users in the store
+     */
+    int size();
+}
@@ -0,0 +1,168 @@
+package chat.server.auth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Credential store that reads a compact binary credential file through a
+ * memory mapping. Opening the store only maps the file, so startup time does
+ * not depend on the number of users, and each lookup touches just the index
+ * slots and the entry it needs.
+ *
+ * File layout (big-endian):
+ * <pre>
+ * header : int magic, int version, int entryCount, int slotCount
+ * slots  : slotCount x (int usernameHash, int entryOffset)   -- offset 0 = empty
+ * entries: u16 usernameLength, username bytes, u16 passwordLength, password bytes
+ * </pre>
+ * The slot table is an open-addressing hash table with linear probing and a
+ * power-of-two size. Files are produced by {@link CredentialFileConverter}.
+ */
+public class MappedCredentialStore implements CredentialStore {
+
+    static final int MAGIC = 0x43484352; // "CHCR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int SLOT_SIZE = 8;
+
+    private final ByteBuffer buffer;
+    private final int entryCount;
+    private final int slotCount;
+
+    /**
+     * Maps the given credential file.
+     *
+     * @param filePath Path to a file written by {@link CredentialFileConverter}
+     * @throws IOException If the file cannot be mapped or is not a valid
+     * credential file
+     */
+    public MappedCredentialStore(Path filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid credential file size: " + size);
+            }
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            this.buffer = mapped;
+        }
+
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a credential file: " + filePath);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported credential file version: " + buffer.getInt(4));
+        }
+
+        this.entryCount = buffer.getInt(8);
+        this.slotCount = buffer.getInt(12);
+        if (slotCount <= 0 || Integer.bitCount(slotCount) != 1
+                || HEADER_SIZE + (long) slotCount * SLOT_SIZE > buffer.capacity()) {
+            throw new IOException("Corrupt credential file index: " + filePath);
+        }
+    }
+
+    /**
+     * Checks whether a file starts with the binary credential file magic.
+     */
+    public static boolean isCredentialFile(Path filePath) throws IOException {
+        try (InputStream in = Files.newInputStream(filePath)) {
+            byte[] header = in.readNBytes(4);
+            return header.length == 4 && ByteBuffer.wrap(header).getInt() == MAGIC;
+        }
+    }
+
+    @Override
+    public boolean matches(String username, String password) {
+        if (username == null || password == null) {
+            return false;
+        }
+
+        int passwordOffset = findPasswordOffset(username);
+        if (passwordOffset < 0) {
+            return false;
+        }
+
+        byte[] stored = readField(passwordOffset);
+        return MessageDigest.isEqual(stored, password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean contains(String username) {
+        return username != null && findPasswordOffset(username) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return entryCount;
+    }
+
+    /**
+     * Probes the slot table for the user.
+     *
+     * @return Offset of the password field of the user's entry, or -1 if the
+     * user does not exist
+     */
+    private int findPasswordOffset(String username) {
+        byte[] key = username.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        int mask = slotCount - 1;
+        int index = hash & mask;
+
+        for (int probes = 0; probes < slotCount; probes++) {
+            int slot = HEADER_SIZE + index * SLOT_SIZE;
+            int entryOffset = buffer.getInt(slot + 4);
+            if (entryOffset == 0) {
+                return -1; // Empty slot ends the probe sequence
+            }
+
+            // Only touch the entry page when the stored hash matches
+            if (buffer.getInt(slot) == hash && fieldEquals(entryOffset, key)) {
+                return entryOffset + 2 + key.length;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean fieldEquals(int offset, byte[] expected) {
+        int length = Short.toUnsignedInt(buffer.getShort(offset));
+        if (length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + 2 + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] readField(int offset) {
+        int length = Short.toUnsignedInt(buffer.getShort(offset));
+        byte[] value = new byte[length];
+        buffer.get(offset + 2, value);
+        return value;
+    }
+
+    /**
+     * 32-bit FNV-1a hash of the UTF-8 username. Shared with the converter so
+     * that both sides agree on slot placement.
+     */
+    static int hash(byte[] key) {
+        int hash = 0x811c9dc5;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+}
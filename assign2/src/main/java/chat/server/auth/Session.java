@@ -13,6 +13,10 @@ public class Session {
         return username;
     }
 
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
     public boolean isExpired() {
         return System.currentTimeMillis() > expirationTime;
     }
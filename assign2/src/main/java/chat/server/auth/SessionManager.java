@@ -31,6 +31,48 @@ public class SessionManager {
         return token;
     }
 
+    /**
+     * Adds a session created elsewhere, such as on another cluster node.
+     */
+    public void addSession(String token, String username, long expirationTime) {
+        sessionsLock.writeLock().lock();
+        try {
+            sessions.put(token, new Session(username, expirationTime));
+        } finally {
+            sessionsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return The session, or null if the token is unknown
+     */
+    public Session getSession(String token) {
+        sessionsLock.readLock().lock();
+        try {
+            return sessions.get(token);
+        } finally {
+            sessionsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return A copy of all sessions that have not expired, by token
+     */
+    public Map<String, Session> getSessions() {
+        sessionsLock.readLock().lock();
+        try {
+            Map<String, Session> active = new HashMap<>();
+            for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+                if (!entry.getValue().isExpired()) {
+                    active.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return active;
+        } finally {
+            sessionsLock.readLock().unlock();
+        }
+    }
+
     public String validateSession(String token) {
         if (token == null) {
             return null;
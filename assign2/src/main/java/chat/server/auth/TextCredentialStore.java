@@ -0,0 +1,68 @@
+package chat.server.auth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Credential store backed by the plain text {@code username:password} file,
+ * loaded fully into memory. Suitable for small user directories; large ones
+ * should be converted with {@link CredentialFileConverter}.
+ */
+public class TextCredentialStore implements CredentialStore {
+
+    private final Map<String, String> userCredentials = new HashMap<>();
+
+    /**
+     * Loads user credentials from a text file.
+     *
+     * @param filePath Path to the file containing user credentials
+     * @throws IOException If the file cannot be read
+     */
+    public TextCredentialStore(Path filePath) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(filePath)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] entry = parseLine(line);
+                if (entry != null) {
+                    userCredentials.put(entry[0], entry[1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a single line of the text credentials format.
+     *
+     * @return {username, password}, or null for blank lines, comments and
+     * malformed lines
+     */
+    static String[] parseLine(String line) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+            return null; // Skip empty lines and comments
+        }
+
+        String[] parts = line.split(":", 2);
+        return parts.length == 2 ? parts : null;
+    }
+
+    @Override
+    public boolean matches(String username, String password) {
+        String stored = userCredentials.get(username);
+        return stored != null && stored.equals(password);
+    }
+
+    @Override
+    public boolean contains(String username) {
+        return userCredentials.containsKey(username);
+    }
+
+    @Override
+    public int size() {
+        return userCredentials.size();
+    }
+}
@@ -0,0 +1,86 @@
+package chat.server.cluster;
+
+import java.util.List;
+
+/**
+ * Receives room events relayed by other nodes of the cluster. Called on the
+ * thread reading the link from that node, so events from one node arrive in
+ * the order it published them.
+ */
+public interface ClusterListener {
+
+    /**
+     * A room was created on another node.
+     *
+     * @param aiPrompt Prompt of an AI room, or null for a regular room
+     */
+    void onRemoteRoom(String origin, String roomName, String aiPrompt);
+
+    /**
+     * The prompt of an AI room was changed on another node.
+     */
+    void onRemotePrompt(String origin, String roomName, String aiPrompt);
+
+    /**
+     * A message was broadcast to a room on another node (relay mode only).
+     */
+    void onRemoteMessage(String origin, String roomName, String message);
+
+    /**
+     * Presence events of a room, coalesced on another node (relay mode only).
+     */
+    void onRemotePresence(String origin, String roomName, List<String> joined, List<String> left,
+            List<String> typing);
+
+    /**
+     * A history message of a room handed over by its previous owner.
+     *
+     * @param seq Sequence number of the message on the previous owner
+     */
+    void onRemoteHistory(String origin, String roomName, long seq, String message);
+
+    /**
+     * A message of a room this node is the standby for, replicated by the
+     * room's owner.
+     *
+     * @param seq Sequence number of the message on the owner
+     */
+    void onReplica(String origin, String roomName, long seq, String message);
+
+    /**
+     * The owner of a room is about to send its whole history to this node,
+     * the room's standby, replacing any copy kept so far.
+     */
+    void onReplicaReset(String origin, String roomName);
+
+    /**
+     * A direct message for a user who is not connected to the node it was
+     * sent on. Delivered to the user's connections here, if any, and then
+     * acknowledged to the origin with {@link ClusterNode#acknowledgeDirectMessage}.
+     *
+     * @param id ID of the message on the origin node
+     */
+    void onRemoteDirectMessage(String origin, long id, String from, String to, String text);
+
+    /**
+     * A direct message this node relayed was delivered on another node.
+     */
+    void onDirectMessageAck(String origin, long id);
+
+    /**
+     * A user logged in on another node; the token is valid here too.
+     */
+    void onRemoteSession(String origin, String token, String username, long expirationTime);
+
+    /**
+     * A user logged out on another node.
+     */
+    void onRemoteSessionEnd(String origin, String token);
+
+    /**
+     * Nodes joined or left the cluster: new nodes must learn the rooms and
+     * sessions, and with ownership, some rooms may have a new owner. Called
+     * on its own thread.
+     */
+    void onMembershipChanged();
+}
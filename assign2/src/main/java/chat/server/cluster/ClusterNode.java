@@ -0,0 +1,589 @@
+package chat.server.cluster;
+
+import chat.protocol.LineEscaping;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Membership of this server in a cluster of chat servers. Every node knows
+ * every room and session: room creations, prompt changes, logins and logouts
+ * are published to all peers, so a session token is valid on every node.
+ *
+ * With room ownership (the default), each room is owned by exactly one node,
+ * chosen by consistent hashing ({@link HashRing}) over the nodes currently
+ * linked to this one; clients joining a room elsewhere are redirected to its
+ * owner. When nodes join or leave, the previous owner of a moved room hands
+ * its history over to the new owner and redirects the room's members. In
+ * relay mode, every node hosts every room and room messages are published
+ * to all peers, which deliver them to their local members.
+ *
+ * With replication, the owner of a room also sends its messages to the
+ * room's standby ({@link HashRing#standbyOf}), the node that owns the room
+ * once the owner leaves the ring. Replication is asynchronous and batched
+ * like every other event, so the standby may lag behind by the messages
+ * still queued when the owner fails.
+ *
+ * Nodes are linked by plain TCP connections carrying one event per line:
+ * each node dials every configured peer for sending ({@link PeerLink}) and
+ * accepts the peers' links for receiving. A peer must open its link with
+ * "NODE &lt;id&gt; &lt;client address&gt; &lt;secret&gt;", answered with
+ * "WELCOME &lt;id&gt;", so run the cluster port on a trusted network and set
+ * a shared secret. A node is on the ring while its link to this node is up.
+ *
+ * Events are only published by the node where they happened and are never
+ * relayed further, so the configured peers must form a full mesh.
+ */
+public class ClusterNode {
+
+    private static final String HELLO = "NODE";
+    static final String WELCOME = "WELCOME";
+    private static final String ROOM = "ROOM";
+    private static final String PROMPT = "PROMPT";
+    private static final String MESSAGE = "MSG";
+    private static final String HISTORY = "HIST";
+    private static final String SESSION = "SESSION";
+    private static final String SESSION_END = "ENDSESSION";
+    private static final String REPLICA = "REPL";
+    private static final String DIRECT_MESSAGE = "DM";
+    private static final String DIRECT_MESSAGE_ACK = "DMACK";
+    private static final String PRESENCE = "PRESENCE";
+    private static final String REPLICA_RESET = "REPLRESET";
+
+    private final String nodeId;
+    private final String clientAddress;
+    private final boolean ownership;
+    private final boolean replication;
+    private final String bindAddress;
+    private final int port;
+    private final String secret;
+    private final ClusterListener listener;
+    private final List<PeerLink> peers = new ArrayList<>();
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile ServerSocket serverSocket;
+    private volatile boolean running = false;
+
+    // Room ownership. The ring is replaced, never modified, so lookups need
+    // no lock; ringLock only serializes membership changes.
+    private volatile HashRing ring;
+    private final Lock ringLock = new ReentrantLock();
+    private final Map<String, Socket> memberLinks = new ConcurrentHashMap<>();
+
+    // Metrics
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong rejectedLinks = new AtomicLong();
+    private final AtomicLong membershipChanges = new AtomicLong();
+    private final AtomicLong replicated = new AtomicLong();
+    private final AtomicLong replicaReceived = new AtomicLong();
+    private final AtomicLong promotions = new AtomicLong();
+    // Replication lag seen as standby since the last report: time from the
+    // owner queuing a message to this node receiving it
+    private final AtomicLong lagSamples = new AtomicLong();
+    private final AtomicLong lagTotalMs = new AtomicLong();
+    private final AtomicLong lagMaxMs = new AtomicLong();
+
+    /**
+     * @param nodeId Name of this node, unique in the cluster
+     * @param clientAddress "host:port" clients are redirected to for this node
+     * @param bindAddress Address the cluster port listens on
+     * @param port Port the peers connect to
+     * @param peerAddresses "host:port" of every other node
+     * @param secret Shared secret every node must present
+     * @param ownership true to assign rooms to nodes, false to relay messages
+     * @param replication true to replicate each room to its standby node
+     *                    (with ownership only)
+     * @param virtualNodes Points per node on the hash ring
+     * @param queueSize Frames queued per peer before new ones are dropped
+     * @param lingerMs Time each peer link waits to fill a batch
+     * @param reconnectMs Delay between connection attempts to a peer
+     */
+    public ClusterNode(String nodeId, String clientAddress, String bindAddress, int port, List<String> peerAddresses,
+            String secret, boolean ownership, boolean replication, int virtualNodes, int queueSize, long lingerMs,
+            long reconnectMs, ClusterListener listener) {
+        this.nodeId = nodeId;
+        this.clientAddress = clientAddress;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.secret = secret;
+        this.ownership = ownership;
+        this.replication = ownership && replication;
+        this.listener = listener;
+        this.ring = new HashRing(virtualNodes).withNode(nodeId, clientAddress);
+
+        String handshake = HELLO + " " + nodeId + " " + clientAddress + " " + secret;
+        for (String address : peerAddresses) {
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Invalid cluster peer address: " + address);
+            }
+            String host = address.substring(0, colon);
+            int peerPort = Integer.parseInt(address.substring(colon + 1));
+            peers.add(new PeerLink(host, peerPort, handshake, queueSize, lingerMs, reconnectMs));
+        }
+    }
+
+    /**
+     * Opens the cluster port and starts dialing the peers.
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+        running = true;
+        executor.submit(this::acceptLinks);
+        for (PeerLink peer : peers) {
+            executor.submit(peer);
+        }
+        System.out.println("Cluster node " + nodeId + " listening on " + bindAddress + ":" + port
+                + " with " + peers.size() + " peer(s), "
+                + (ownership ? "room ownership" + (replication ? " and replication" : "") : "relay mode"));
+    }
+
+    public void stop() {
+        running = false;
+        for (PeerLink peer : peers) {
+            peer.stop();
+        }
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing cluster socket: " + e.getMessage());
+        }
+        executor.shutdownNow();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public String getClientAddress() {
+        return clientAddress;
+    }
+
+    public boolean isOwnershipEnabled() {
+        return ownership;
+    }
+
+    /**
+     * @return true if clients of the room are served by this node, which is
+     * always the case in relay mode
+     */
+    public boolean isLocal(String roomName) {
+        return !ownership || nodeId.equals(ring.ownerOf(roomName));
+    }
+
+    /**
+     * @return Client address of the node owning the room
+     */
+    public String ownerAddressOf(String roomName) {
+        HashRing current = ring;
+        return current.addressOf(current.ownerOf(roomName));
+    }
+
+    /**
+     * Publishes the creation of a room.
+     *
+     * @param aiPrompt Prompt of an AI room, or null for a regular room
+     */
+    public void publishRoom(String roomName, String aiPrompt) {
+        publish(aiPrompt == null ? ROOM + " " + roomName : ROOM + " " + roomName + " " + LineEscaping.escape(aiPrompt));
+    }
+
+    public void publishPrompt(String roomName, String aiPrompt) {
+        publish(PROMPT + " " + roomName + " " + LineEscaping.escape(aiPrompt));
+    }
+
+    /**
+     * Publishes a room message to the other nodes' members. Only used in
+     * relay mode; with ownership, all members are on this node.
+     */
+    public void publishMessage(String roomName, String message) {
+        if (!ownership) {
+            publish(MESSAGE + " " + roomName + " " + LineEscaping.escape(message));
+        }
+    }
+
+    /**
+     * Publishes a room's coalesced presence events to the other nodes'
+     * members. Only used in relay mode, like {@link #publishMessage}.
+     */
+    public void publishPresence(String roomName, List<String> joined, List<String> left, List<String> typing) {
+        if (!ownership) {
+            publish(PRESENCE + " " + roomName + " " + joinNames(joined) + "|" + joinNames(left) + "|" + joinNames(typing));
+        }
+    }
+
+    /**
+     * Queues a message of a room this node owns for the room's standby.
+     * Never blocks: the frame is dropped if the standby's queue is full.
+     * Callers queue a room's messages in history order, as the standby
+     * starts its copy over when it sees a gap.
+     */
+    public void replicateMessage(String roomName, long seq, String message) {
+        if (!replication) {
+            return;
+        }
+        PeerLink standby = standbyLink(roomName);
+        if (standby != null) {
+            standby.offer(replicaFrame(roomName, seq, message, System.currentTimeMillis()));
+            replicated.incrementAndGet();
+        }
+    }
+
+    /**
+     * Sends the whole history of a room this node owns to the room's
+     * standby, which replaces its copy with it. Used when the standby may
+     * have changed. Like {@link #replicateMessage}, called in history order.
+     *
+     * @param firstSeq Sequence number of the first message
+     * @return ID of the standby node, or null if the room has none
+     */
+    public String replicateHistory(String roomName, long firstSeq, List<String> messages) {
+        if (!replication) {
+            return null;
+        }
+        PeerLink standby = standbyLink(roomName);
+        if (standby == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        standby.offer(REPLICA_RESET + " " + roomName);
+        for (int i = 0; i < messages.size(); i++) {
+            standby.offer(replicaFrame(roomName, firstSeq + i, messages.get(i), now));
+        }
+        replicated.addAndGet(messages.size());
+        return standby.getPeerId();
+    }
+
+    /**
+     * Counts a room taken over from its previous owner with the replicated
+     * history, for the periodic log.
+     */
+    public void recordPromotion() {
+        promotions.incrementAndGet();
+    }
+
+    /**
+     * Publishes a direct message for a user not connected to this node.
+     * Every node delivers it to the user's connections, if it has any, and
+     * acknowledges it.
+     *
+     * @param id ID of the message on this node, returned in the acknowledgement
+     */
+    public void publishDirectMessage(long id, String from, String to, String text) {
+        publish(DIRECT_MESSAGE + " " + to + " " + id + " " + from + " " + LineEscaping.escape(text));
+    }
+
+    /**
+     * Tells the node a direct message came from that it was delivered here.
+     */
+    public void acknowledgeDirectMessage(String origin, long id) {
+        PeerLink link = linkTo(origin);
+        if (link != null) {
+            link.offer(DIRECT_MESSAGE_ACK + " " + id);
+        }
+    }
+
+    public void publishSession(String token, String username, long expirationTime) {
+        publish(SESSION + " " + token + " " + username + " " + expirationTime);
+    }
+
+    public void publishSessionEnd(String token) {
+        publish(SESSION_END + " " + token);
+    }
+
+    /**
+     * Hands a room's history over to its new owner. Sent to every peer;
+     * only the owner keeps it.
+     *
+     * @param firstSeq Sequence number of the first message
+     */
+    public void publishHistory(String roomName, long firstSeq, List<String> messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            publish(HISTORY + " " + roomName + " " + (firstSeq + i) + " " + LineEscaping.escape(messages.get(i)));
+        }
+    }
+
+    /**
+     * @return Link to the room's standby node, or null if it has none or
+     * the link is not up
+     */
+    private PeerLink standbyLink(String roomName) {
+        String standby = ring.standbyOf(roomName);
+        return standby != null ? linkTo(standby) : null;
+    }
+
+    /**
+     * @return Link to a node, or null if there is none
+     */
+    private PeerLink linkTo(String peerId) {
+        for (PeerLink peer : peers) {
+            if (peerId.equals(peer.getPeerId())) {
+                return peer;
+            }
+        }
+        return null;
+    }
+
+    private static String replicaFrame(String roomName, long seq, String message, long sentAt) {
+        return REPLICA + " " + roomName + " " + seq + " " + sentAt + " " + LineEscaping.escape(message);
+    }
+
+    private void publish(String frame) {
+        for (PeerLink peer : peers) {
+            peer.offer(frame);
+        }
+    }
+
+    private void acceptLinks() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                executor.submit(() -> readLink(socket));
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting cluster link: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the events published by one peer.
+     */
+    private void readLink(Socket socket) {
+        String origin = null;
+        try (socket; BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            String[] hello = String.valueOf(reader.readLine()).split(" ", 4);
+            if (hello.length < 3 || !hello[0].equals(HELLO)
+                    || !MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                            (hello.length > 3 ? hello[3] : "").getBytes(StandardCharsets.UTF_8))) {
+                rejectedLinks.incrementAndGet();
+                System.err.println("Rejected cluster link from " + socket.getInetAddress().getHostAddress());
+                return;
+            }
+            origin = hello[1];
+            OutputStream out = socket.getOutputStream();
+            out.write((WELCOME + " " + nodeId + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            System.out.println("Cluster link from node " + origin + " accepted");
+            addMember(origin, hello[2], socket);
+
+            String line;
+            while (running && (line = reader.readLine()) != null) {
+                received.incrementAndGet();
+                dispatch(origin, line);
+            }
+        } catch (IOException e) {
+            if (running && origin != null) {
+                System.err.println("Cluster link from node " + origin + " lost: " + e.getMessage());
+            }
+        } finally {
+            if (origin != null) {
+                removeMember(origin, socket);
+            }
+        }
+    }
+
+    /**
+     * Puts a node on the ring once its link is up.
+     */
+    private void addMember(String memberId, String memberAddress, Socket link) {
+        ringLock.lock();
+        try {
+            memberLinks.put(memberId, link);
+            ring = ring.withNode(memberId, memberAddress);
+        } finally {
+            ringLock.unlock();
+        }
+        membershipChanged();
+    }
+
+    /**
+     * Takes a node off the ring when its link closes, unless it has already
+     * opened a newer link.
+     */
+    private void removeMember(String memberId, Socket link) {
+        ringLock.lock();
+        try {
+            if (!memberLinks.remove(memberId, link)) {
+                return;
+            }
+            ring = ring.withoutNode(memberId);
+        } finally {
+            ringLock.unlock();
+        }
+        membershipChanged();
+    }
+
+    private void membershipChanged() {
+        membershipChanges.incrementAndGet();
+        if (running) {
+            // Rebalance without holding up the link that reported the change
+            executor.submit(listener::onMembershipChanged);
+        }
+    }
+
+    private void dispatch(String origin, String frame) {
+        String[] parts = frame.split(" ", 3);
+        if (parts.length < 2) {
+            return;
+        }
+        String text = parts.length > 2 ? LineEscaping.unescape(parts[2]) : null;
+
+        try {
+            switch (parts[0]) {
+                case ROOM:
+                    listener.onRemoteRoom(origin, parts[1], text);
+                    break;
+                case PROMPT:
+                    if (text != null) {
+                        listener.onRemotePrompt(origin, parts[1], text);
+                    }
+                    break;
+                case MESSAGE:
+                    if (text != null) {
+                        listener.onRemoteMessage(origin, parts[1], text);
+                    }
+                    break;
+                case PRESENCE:
+                    // "PRESENCE <room> <joined>|<left>|<typing>", names URL-encoded and comma-separated
+                    String[] presence = text != null ? text.split("\\|", -1) : new String[0];
+                    if (presence.length == 3) {
+                        listener.onRemotePresence(origin, parts[1], names(presence[0]), names(presence[1]),
+                                names(presence[2]));
+                    }
+                    break;
+                case SESSION:
+                    // "SESSION <token> <username> <expiration time>"
+                    String[] session = text != null ? text.split(" ") : new String[0];
+                    if (session.length == 2) {
+                        listener.onRemoteSession(origin, parts[1], session[0], Long.parseLong(session[1]));
+                    }
+                    break;
+                case SESSION_END:
+                    listener.onRemoteSessionEnd(origin, parts[1]);
+                    break;
+                case DIRECT_MESSAGE:
+                    // "DM <to> <id> <from> <text>"
+                    String[] directMessage = text != null ? text.split(" ", 3) : new String[0];
+                    if (directMessage.length == 3) {
+                        listener.onRemoteDirectMessage(origin, Long.parseLong(directMessage[0]), directMessage[1],
+                                parts[1], directMessage[2]);
+                    }
+                    break;
+                case DIRECT_MESSAGE_ACK:
+                    listener.onDirectMessageAck(origin, Long.parseLong(parts[1]));
+                    break;
+                case HISTORY:
+                    // "HIST <room> <seq> <message>"
+                    int seqEnd = text != null ? text.indexOf(' ') : -1;
+                    if (seqEnd > 0) {
+                        listener.onRemoteHistory(origin, parts[1],
+                                Long.parseLong(text.substring(0, seqEnd)), text.substring(seqEnd + 1));
+                    }
+                    break;
+                case REPLICA:
+                    // "REPL <room> <seq> <sent at> <message>"
+                    String[] replica = text != null ? text.split(" ", 3) : new String[0];
+                    if (replica.length == 3) {
+                        recordLag(System.currentTimeMillis() - Long.parseLong(replica[1]));
+                        replicaReceived.incrementAndGet();
+                        listener.onReplica(origin, parts[1], Long.parseLong(replica[0]), replica[2]);
+                    }
+                    break;
+                case REPLICA_RESET:
+                    listener.onReplicaReset(origin, parts[1]);
+                    break;
+                default:
+                    // Unknown event from a newer node, ignore
+                    break;
+            }
+        } catch (Exception e) {
+            System.err.println("Error handling cluster event from node " + origin + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The names URL-encoded, so none contains ',' or '|', and
+     * comma-separated
+     */
+    private static String joinNames(List<String> names) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(URLEncoder.encode(name, StandardCharsets.UTF_8));
+        }
+        return sb.toString();
+    }
+
+    private static List<String> names(String list) {
+        List<String> names = new ArrayList<>();
+        if (!list.isEmpty()) {
+            for (String name : list.split(",")) {
+                names.add(URLDecoder.decode(name, StandardCharsets.UTF_8));
+            }
+        }
+        return names;
+    }
+
+    private void recordLag(long lagMs) {
+        lagMs = Math.max(0, lagMs);  // Clocks of nodes on other hosts may differ slightly
+        lagSamples.incrementAndGet();
+        lagTotalMs.addAndGet(lagMs);
+        lagMaxMs.accumulateAndGet(lagMs, Math::max);
+    }
+
+    /**
+     * @return Link states and counters, for the periodic log. The
+     * replication lag covers the messages received since the last call.
+     */
+    public String getMetricsSummary() {
+        StringBuilder summary = new StringBuilder("Cluster node ").append(nodeId)
+                .append(": nodes=").append(ring.getNodes().keySet())
+                .append(" membershipChanges=").append(membershipChanges.get())
+                .append(" received=").append(received.get())
+                .append(" rejectedLinks=").append(rejectedLinks.get());
+        if (replication) {
+            long samples = lagSamples.getAndSet(0);
+            long totalMs = lagTotalMs.getAndSet(0);
+            summary.append(" replicated=").append(replicated.get())
+                    .append(" replicaReceived=").append(replicaReceived.get())
+                    .append(" replicaLagAvgMs=").append(samples > 0 ? totalMs / samples : 0)
+                    .append(" replicaLagMaxMs=").append(lagMaxMs.getAndSet(0))
+                    .append(" promotions=").append(promotions.get());
+        }
+        for (PeerLink peer : peers) {
+            long batches = peer.getBatches();
+            summary.append(" | ").append(peer.getAddress())
+                    .append(peer.isConnected() ? " up" : " down")
+                    .append(" sent=").append(peer.getSent())
+                    .append(" batches=").append(batches)
+                    .append(" avgBatch=").append(batches > 0 ? peer.getSent() / batches : 0)
+                    .append(" dropped=").append(peer.getDropped())
+                    .append(" connects=").append(peer.getConnects());
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,129 @@
+package chat.server.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring that assigns each room to one node. Every node is
+ * placed on the ring at several points (virtual nodes), and a room belongs
+ * to the first node point at or after the room's hash. Adding or removing a
+ * node therefore moves only the rooms next to its points, spread evenly over
+ * the other nodes.
+ *
+ * Instances are immutable: membership changes return a new ring, so lookups
+ * never wait for a rebalance.
+ */
+public final class HashRing {
+
+    private final int virtualNodes;
+    private final Map<String, String> addresses;  // Node ID -> client address
+    private final TreeMap<Long, String> points;   // Ring position -> node ID
+
+    /**
+     * @param virtualNodes Points per node on the ring
+     */
+    public HashRing(int virtualNodes) {
+        this(Math.max(1, virtualNodes), new HashMap<>());
+    }
+
+    private HashRing(int virtualNodes, Map<String, String> addresses) {
+        this.virtualNodes = virtualNodes;
+        this.addresses = addresses;
+        this.points = new TreeMap<>();
+        for (String nodeId : addresses.keySet()) {
+            for (int i = 0; i < virtualNodes; i++) {
+                points.put(hash(nodeId + "#" + i), nodeId);
+            }
+        }
+    }
+
+    /**
+     * @param clientAddress "host:port" clients connect to on that node
+     * @return A ring that also contains the node
+     */
+    public HashRing withNode(String nodeId, String clientAddress) {
+        Map<String, String> updated = new HashMap<>(addresses);
+        updated.put(nodeId, clientAddress);
+        return new HashRing(virtualNodes, updated);
+    }
+
+    /**
+     * @return A ring without the node
+     */
+    public HashRing withoutNode(String nodeId) {
+        Map<String, String> updated = new HashMap<>(addresses);
+        updated.remove(nodeId);
+        return new HashRing(virtualNodes, updated);
+    }
+
+    /**
+     * @return ID of the node that owns the room, or null if the ring is empty
+     */
+    public String ownerOf(String roomName) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(roomName));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    /**
+     * Finds the node that takes over the room if its owner leaves: the next
+     * other node clockwise from the room's hash. Replicating a room there
+     * means the ring promotes the replica by itself when the owner leaves.
+     *
+     * @return ID of the standby node, or null if the ring has one node
+     */
+    public String standbyOf(String roomName) {
+        if (addresses.size() < 2) {
+            return null;
+        }
+        // The first point clockwise is the owner's, the first point of
+        // another node after it the standby's
+        long key = hash(roomName);
+        String owner = null;
+        for (Map<Long, String> half : List.of(points.tailMap(key, true), points.headMap(key, false))) {
+            for (String nodeId : half.values()) {
+                if (owner == null) {
+                    owner = nodeId;
+                } else if (!nodeId.equals(owner)) {
+                    return nodeId;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Client address of a node, or null if it is not on the ring
+     */
+    public String addressOf(String nodeId) {
+        return addresses.get(nodeId);
+    }
+
+    /**
+     * @return Node IDs and client addresses of every node on the ring
+     */
+    public Map<String, String> getNodes() {
+        return Collections.unmodifiableMap(addresses);
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+}
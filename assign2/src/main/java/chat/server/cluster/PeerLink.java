@@ -0,0 +1,208 @@
+package chat.server.cluster;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound link to one peer node. Frames are queued by the publishing
+ * threads and written by a single sender thread in batches: everything that
+ * accumulated while the previous batch was written (or during the linger
+ * time) goes out with one flush.
+ *
+ * Delivery is at most once. Frames are dropped, never retried, when the
+ * queue is full or when the connection fails while their batch is written.
+ * Frames still queued when the connection fails are sent after reconnecting.
+ *
+ * The peer answers the handshake with its node ID, so frames meant for one
+ * node (such as room replication) can be sent on that node's link only.
+ */
+class PeerLink implements Runnable {
+
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+
+    private final String host;
+    private final int port;
+    private final String handshake;
+    private final long lingerMs;
+    private final long reconnectMs;
+    private final BlockingQueue<String> queue;
+
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    private volatile boolean connected = false;
+    private volatile String peerId;  // Node ID the peer answered with, null until connected
+
+    // Metrics
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+
+    /**
+     * @param handshake First line sent on every connection
+     * @param queueSize Frames queued before new ones are dropped
+     * @param lingerMs Time to wait for more frames before writing a batch
+     * @param reconnectMs Delay between connection attempts
+     */
+    PeerLink(String host, int port, String handshake, int queueSize, long lingerMs, long reconnectMs) {
+        this.host = host;
+        this.port = port;
+        this.handshake = handshake;
+        this.lingerMs = lingerMs;
+        this.reconnectMs = reconnectMs;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+    }
+
+    /**
+     * Queues a frame for the peer, or drops it if the queue is full.
+     */
+    void offer(String frame) {
+        if (!queue.offer(frame)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    String getAddress() {
+        return host + ":" + port;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return Node ID of the peer, or null if it never accepted the link
+     */
+    String getPeerId() {
+        return peerId;
+    }
+
+    long getSent() {
+        return sent.get();
+    }
+
+    long getBatches() {
+        return batches.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    long getConnects() {
+        return connects.get();
+    }
+
+    void stop() {
+        running = false;
+        closeSocket();
+    }
+
+    @Override
+    public void run() {
+        List<String> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            while (running) {
+                try (Socket newSocket = new Socket()) {
+                    newSocket.setTcpNoDelay(true); // Batching is done here
+                    newSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                    socket = newSocket;
+                    Writer writer = new BufferedWriter(
+                            new OutputStreamWriter(newSocket.getOutputStream(), StandardCharsets.UTF_8));
+                    writer.write(handshake);
+                    writer.write('\n');
+                    writer.flush();
+                    peerId = readWelcome(newSocket);
+
+                    connected = true;
+                    connects.incrementAndGet();
+                    System.out.println("Cluster link to " + getAddress() + " connected");
+                    sendBatches(writer, batch);
+                } catch (IOException e) {
+                    // At most once: the batch being written is not retried
+                    dropped.addAndGet(batch.size());
+                    batch.clear();
+                    if (connected) {
+                        System.err.println("Cluster link to " + getAddress() + " lost: " + e.getMessage());
+                    }
+                } finally {
+                    connected = false;
+                    socket = null;
+                }
+
+                if (running) {
+                    Thread.sleep(reconnectMs);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the peer's answer to the handshake: "WELCOME &lt;node id&gt;".
+     * A peer that rejects the handshake closes the link instead.
+     *
+     * @return Node ID of the peer
+     */
+    private static String readWelcome(Socket socket) throws IOException {
+        socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        String welcome = reader.readLine();
+        if (welcome == null || !welcome.startsWith(ClusterNode.WELCOME + " ")) {
+            throw new IOException("Handshake rejected");
+        }
+        socket.setSoTimeout(0);
+        return welcome.substring(ClusterNode.WELCOME.length() + 1).trim();
+    }
+
+    private void sendBatches(Writer writer, List<String> batch) throws IOException, InterruptedException {
+        while (running) {
+            String first = queue.poll(1, TimeUnit.SECONDS);
+            if (first == null) {
+                continue;
+            }
+            if (lingerMs > 0) {
+                Thread.sleep(lingerMs);
+            }
+
+            batch.add(first);
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            for (String frame : batch) {
+                writer.write(frame);
+                writer.write('\n');
+            }
+            writer.flush();
+
+            sent.addAndGet(batch.size());
+            batches.incrementAndGet();
+            batch.clear();
+        }
+    }
+
+    private void closeSocket() {
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+}